@@ -5,19 +5,34 @@ import spring.demo.service.IDemoService;
 import spring.framework.annotation.Autowired;
 import spring.framework.annotation.Controller;
 import spring.framework.annotation.RequestMapping;
+import spring.framework.annotation.RequestMethod;
 import spring.framework.annotation.RequestParam;
+import spring.framework.v3.MultipartFile;
+import spring.framework.v3.SseEmitter;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Controller
 @RequestMapping( "/spring/demo" )
 public class DemoAction {
+    // 所有SSE连接共用的推送线程
+    private static final ScheduledExecutorService EVENT_SCHEDULER = Executors.newSingleThreadScheduledExecutor( r -> {
+        Thread thread = new Thread( r, "demo-events" );
+        thread.setDaemon( true );
+        return thread;
+    } );
+
     @Autowired
     private IDemoService demoService;
 
-    @RequestMapping("/query")
+    @RequestMapping( value = "/query", method = { RequestMethod.GET, RequestMethod.POST } )
     public void query( HttpServletRequest req, HttpServletResponse resp, @RequestParam("name") String name) {
         String result = "My name is " + name;
         try {
@@ -27,4 +42,40 @@ public class DemoAction {
             e.printStackTrace();
         }
     }
+
+    @RequestMapping( value = "/events", method = RequestMethod.GET )
+    public SseEmitter events( @RequestParam("name") String name ) {
+        SseEmitter emitter = new SseEmitter();
+        AtomicInteger sent = new AtomicInteger();
+        // 在共享的调度线程上推送，容器线程在方法返回后即被释放；不能阻塞调度线程，队列满时跳过这一次
+        ScheduledFuture< ? > task = EVENT_SCHEDULER.scheduleAtFixedRate( () -> {
+            try {
+                if ( sent.get() >= 5 ) {
+                    return;
+                }
+                if ( emitter.trySend( demoService.get( name ) + " #" + sent.get() ) && sent.incrementAndGet() == 5 ) {
+                    emitter.complete();
+                }
+            } catch ( IOException e ) {
+                // 客户端已经断开，onCompletion会取消任务
+            }
+        }, 0, 1, TimeUnit.SECONDS );
+        // 客户端断开或者推送结束后停止调度
+        emitter.onCompletion( () -> task.cancel( false ) );
+        return emitter;
+    }
+
+    @RequestMapping( value = "/upload", method = RequestMethod.POST )
+    public void upload( HttpServletResponse resp, @RequestParam("name") String name, @RequestParam("file") MultipartFile file ) {
+        try {
+            if ( file == null ) {
+                resp.getWriter().write( name + " uploaded nothing" );
+                return;
+            }
+            resp.getWriter().write( name + " uploaded " + file.getOriginalFilename() + " (" + file.getSize() + " bytes, "
+                    + ( file.isInMemory() ? "in memory" : "on disk" ) + ")" );
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+    }
 }
@@ -9,4 +9,14 @@ import java.lang.annotation.*;
 public @interface RequestMapping {
 
     String value() default "";
+
+    /**
+     * 该路由接受的请求方法，为空表示接受所有方法；只在方法上生效
+     */
+    RequestMethod[] method() default {};
+
+    /**
+     * 该路由允许的最大并发数，小于等于0表示使用application.properties中的全局配置
+     */
+    int maxConcurrency() default -1;
 }
\ No newline at end of file
@@ -0,0 +1,17 @@
+package spring.framework.annotation;
+
+public enum RequestMethod {
+    GET, HEAD, POST, PUT, PATCH, DELETE, OPTIONS, TRACE;
+
+    /**
+     * 根据请求中的方法名查找，不认识的方法返回null
+     */
+    public static RequestMethod resolve( String method ) {
+        for ( RequestMethod requestMethod : values() ) {
+            if ( requestMethod.name().equals( method ) ) {
+                return requestMethod;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,638 @@
+package spring.framework.v3;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 批量调用入口
+ * 一个请求里通过多个call参数携带子请求，例如
+ * call=/spring/demo/query?name=a&amp;call=/spring/demo/query?name=b&amp;parallel=true
+ * （call的值本身需要URL编码）。每个子请求都走完整的路由和参数绑定，结果按call的顺序输出为JSON数组，
+ * 每完成一个就立刻写出，不等全部结束。
+ */
+class BatchHandler {
+    /**
+     * 子请求的分发入口，由DispatcherServlet提供
+     */
+    interface Dispatcher {
+        void dispatch( HttpServletRequest req, HttpServletResponse resp ) throws Exception;
+    }
+
+    private final String path;
+    private final int maxCalls;
+    // 单个子请求响应体的上限，超过时该子请求的结果为413
+    private final int maxResponseSize;
+    private final Dispatcher dispatcher;
+    private final ThreadPoolExecutor executor;
+
+    BatchHandler( String path, int maxCalls, int threads, int queueSize, int maxResponseSize, Dispatcher dispatcher ) {
+        this.path = path;
+        this.maxCalls = maxCalls;
+        this.maxResponseSize = maxResponseSize;
+        this.dispatcher = dispatcher;
+        AtomicInteger threadIndex = new AtomicInteger();
+        // 队列满时由请求线程自己执行，线程数和排队数都是有界的
+        this.executor = new ThreadPoolExecutor( threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>( Math.max( 1, queueSize ) ), r -> {
+            Thread thread = new Thread( r, "batch-worker-" + threadIndex.incrementAndGet() );
+            thread.setDaemon( true );
+            return thread;
+        }, new ThreadPoolExecutor.CallerRunsPolicy() );
+        this.executor.allowCoreThreadTimeOut( true );
+    }
+
+    boolean matches( String requestPath ) {
+        return path.equals( requestPath );
+    }
+
+    void handle( HttpServletRequest req, HttpServletResponse resp ) throws IOException {
+        String[] calls = req.getParameterValues( "call" );
+        if ( calls == null || calls.length == 0 ) {
+            resp.setStatus( HttpServletResponse.SC_BAD_REQUEST );
+            resp.getWriter().write( "400 Bad Request: no call parameter" );
+            return;
+        }
+        if ( calls.length > maxCalls ) {
+            resp.setStatus( HttpServletResponse.SC_BAD_REQUEST );
+            resp.getWriter().write( "400 Bad Request: at most " + maxCalls + " calls per batch" );
+            return;
+        }
+
+        resp.setContentType( "application/json;charset=UTF-8" );
+        PrintWriter writer = resp.getWriter();
+        writer.write( "[" );
+        if ( Boolean.parseBoolean( req.getParameter( "parallel" ) ) ) {
+            List< SubCall > subCalls = new ArrayList<>( calls.length );
+            List< Future< String > > futures = new ArrayList<>( calls.length );
+            for ( String call : calls ) {
+                SubCall subCall = new SubCall( req, resp, call );
+                subCalls.add( subCall );
+                futures.add( executor.submit( subCall ) );
+            }
+            try {
+                for ( int i = 0; i < futures.size(); i++ ) {
+                    String result;
+                    try {
+                        result = futures.get( i ).get();
+                    } catch ( InterruptedException e ) {
+                        Thread.currentThread().interrupt();
+                        for ( int j = i; j < futures.size(); j++ ) {
+                            writeResult( writer, j, toJson( calls[ j ], HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "interrupted" ) );
+                        }
+                        break;
+                    } catch ( ExecutionException e ) {
+                        result = toJson( calls[ i ], HttpServletResponse.SC_INTERNAL_SERVER_ERROR, String.valueOf( e.getCause() ) );
+                    }
+                    writeResult( writer, i, result );
+                }
+            } finally {
+                // 提前结束时中断还没完成的子请求，并等到它们真正结束：子请求包装着批量请求的request/response，
+                // 不能在handle返回、容器回收这两个对象之后继续使用它们
+                for ( Future< String > future : futures ) {
+                    future.cancel( true );
+                }
+                for ( SubCall subCall : subCalls ) {
+                    subCall.abandon();
+                }
+            }
+        } else {
+            for ( int i = 0; i < calls.length; i++ ) {
+                writeResult( writer, i, execute( req, resp, calls[ i ] ) );
+            }
+        }
+        writer.write( "]" );
+    }
+
+    void destroy() {
+        executor.shutdownNow();
+    }
+
+    private void writeResult( PrintWriter writer, int index, String result ) {
+        if ( index > 0 ) {
+            writer.write( "," );
+        }
+        writer.write( result );
+        // 按顺序逐个推送给客户端
+        writer.flush();
+    }
+
+    private String execute( HttpServletRequest parent, HttpServletResponse parentResponse, String call ) {
+        int question = call.indexOf( '?' );
+        String callPath = ( question < 0 ? call : call.substring( 0, question ) ).replaceAll( "/+", "/" );
+        String query = question < 0 ? null : call.substring( question + 1 );
+        if ( !callPath.startsWith( "/" ) || matches( callPath ) ) {
+            return toJson( call, HttpServletResponse.SC_BAD_REQUEST, "invalid call path" );
+        }
+
+        // HttpServletResponseWrapper需要一个被包装的对象，这里借用批量请求的response，但不会向它写任何东西
+        BatchResponse subResponse = new BatchResponse( parentResponse, maxResponseSize );
+        try {
+            BatchRequest subRequest = new BatchRequest( parent, callPath, query );
+            dispatcher.dispatch( subRequest, subResponse );
+        } catch ( Exception e ) {
+            if ( !subResponse.tooLarge ) {
+                return toJson( call, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, String.valueOf( e ) );
+            }
+        }
+        // Writer中缓存的字符在getBody时才写入，之后才能确定是否超限
+        String body = subResponse.getBody();
+        if ( subResponse.tooLarge ) {
+            return toJson( call, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                    "413 Payload Too Large: response exceeds the limit of " + maxResponseSize + " bytes" );
+        }
+        return toJson( call, subResponse.status, body );
+    }
+
+    /**
+     * 并行执行的一个子请求，记录是否已经开始，便于提前结束时放弃还没开始的、等待正在执行的
+     */
+    private class SubCall implements Callable< String > {
+        private static final int PENDING = 0;
+        private static final int RUNNING = 1;
+        private static final int DONE = 2;
+        private static final int ABANDONED = 3;
+
+        private final HttpServletRequest parent;
+        private final HttpServletResponse parentResponse;
+        private final String call;
+        private final AtomicInteger state = new AtomicInteger( PENDING );
+
+        SubCall( HttpServletRequest parent, HttpServletResponse parentResponse, String call ) {
+            this.parent = parent;
+            this.parentResponse = parentResponse;
+            this.call = call;
+        }
+
+        @Override
+        public String call() {
+            if ( !state.compareAndSet( PENDING, RUNNING ) ) {
+                return null;
+            }
+            try {
+                return execute( parent, parentResponse, call );
+            } finally {
+                synchronized ( this ) {
+                    state.set( DONE );
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * 还没开始的不再执行，正在执行的等它结束；等待期间的中断在返回前恢复
+         */
+        void abandon() {
+            if ( state.compareAndSet( PENDING, ABANDONED ) ) {
+                return;
+            }
+            boolean interrupted = false;
+            synchronized ( this ) {
+                while ( state.get() == RUNNING ) {
+                    try {
+                        wait();
+                    } catch ( InterruptedException e ) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if ( interrupted ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private String toJson( String call, int status, String body ) {
+        return "{\"call\":" + Json.quote( call ) + ",\"status\":" + status + ",\"body\":" + Json.quote( body ) + "}";
+    }
+
+    /**
+     * 子请求，路径和参数来自call，其余信息沿用批量请求
+     */
+    private static class BatchRequest extends HttpServletRequestWrapper {
+        private final String path;
+        private final String query;
+        private final Map< String, String[] > parameters = new LinkedHashMap<>();
+        private final Map< String, Object > attributes = new HashMap<>();
+
+        BatchRequest( HttpServletRequest request, String path, String query ) {
+            super( request );
+            this.path = path;
+            this.query = query;
+            // 子请求的输出收集在内存中，不能承载流式响应和静态文件
+            attributes.put( DispatcherCore.SUB_REQUEST_ATTRIBUTE, Boolean.TRUE );
+            if ( query != null ) {
+                Parameters.parse( parameters, query );
+            }
+        }
+
+        @Override
+        public String getMethod() {
+            return "GET";
+        }
+
+        @Override
+        public String getRequestURI() {
+            return getContextPath() + path;
+        }
+
+        @Override
+        public StringBuffer getRequestURL() {
+            return new StringBuffer( getScheme() + "://" + getServerName() + ":" + getServerPort() + getRequestURI() );
+        }
+
+        @Override
+        public String getServletPath() {
+            return "";
+        }
+
+        @Override
+        public String getPathInfo() {
+            return path;
+        }
+
+        @Override
+        public String getQueryString() {
+            return query;
+        }
+
+        @Override
+        public String getParameter( String name ) {
+            String[] values = parameters.get( name );
+            return values == null ? null : values[ 0 ];
+        }
+
+        @Override
+        public Map< String, String[] > getParameterMap() {
+            return Collections.unmodifiableMap( parameters );
+        }
+
+        @Override
+        public Enumeration< String > getParameterNames() {
+            return Collections.enumeration( parameters.keySet() );
+        }
+
+        @Override
+        public String[] getParameterValues( String name ) {
+            return parameters.get( name );
+        }
+
+        // 子请求固定是没有请求体的GET，父请求的请求体（例如multipart上传）不能被子请求再解析一次
+        @Override
+        public String getContentType() {
+            return null;
+        }
+
+        @Override
+        public int getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            return -1;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() {
+            return new ServletInputStream() {
+                @Override
+                public int read() {
+                    return -1;
+                }
+
+                @Override
+                public boolean isFinished() {
+                    return true;
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setReadListener( ReadListener readListener ) {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public BufferedReader getReader() {
+            return new BufferedReader( new StringReader( "" ) );
+        }
+
+        // 子请求的结果要嵌入JSON，不能再被压缩或者截取，也不参与缓存协商
+        @Override
+        public String getHeader( String name ) {
+            return isExcludedHeader( name ) ? null : super.getHeader( name );
+        }
+
+        @Override
+        public Enumeration< String > getHeaders( String name ) {
+            return isExcludedHeader( name ) ? Collections.emptyEnumeration() : super.getHeaders( name );
+        }
+
+        @Override
+        public long getDateHeader( String name ) {
+            return isExcludedHeader( name ) ? -1 : super.getDateHeader( name );
+        }
+
+        @Override
+        public int getIntHeader( String name ) {
+            return isExcludedHeader( name ) ? -1 : super.getIntHeader( name );
+        }
+
+        private boolean isExcludedHeader( String name ) {
+            return "Accept-Encoding".equalsIgnoreCase( name ) || "Range".equalsIgnoreCase( name )
+                    || "If-Modified-Since".equalsIgnoreCase( name ) || "Content-Type".equalsIgnoreCase( name )
+                    || "Content-Length".equalsIgnoreCase( name ) || "Transfer-Encoding".equalsIgnoreCase( name );
+        }
+
+        // 并行执行时各子请求的attribute互不影响
+        @Override
+        public Object getAttribute( String name ) {
+            return attributes.get( name );
+        }
+
+        @Override
+        public Enumeration< String > getAttributeNames() {
+            return Collections.enumeration( attributes.keySet() );
+        }
+
+        @Override
+        public void setAttribute( String name, Object o ) {
+            attributes.put( name, o );
+        }
+
+        @Override
+        public void removeAttribute( String name ) {
+            attributes.remove( name );
+        }
+
+        @Override
+        public boolean isAsyncSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * 把子请求的输出收集到内存中，超过上限后丢弃已有内容并让之后的写入失败
+     */
+    private static class BatchResponse extends HttpServletResponseWrapper {
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final int maxSize;
+        // PrintWriter会吞掉写入异常，超限只能通过这个标记判断
+        private volatile boolean tooLarge;
+        private final Map< String, String > headers = new HashMap<>();
+        private int status = HttpServletResponse.SC_OK;
+        private String contentType;
+        private String characterEncoding = StandardCharsets.UTF_8.name();
+        private Locale locale;
+        private ServletOutputStream outputStream;
+        private PrintWriter writer;
+
+        BatchResponse( HttpServletResponse response, int maxSize ) {
+            super( response );
+            this.maxSize = maxSize;
+        }
+
+        private void append( byte[] b, int off, int len ) throws IOException {
+            if ( tooLarge || body.size() + len > maxSize ) {
+                tooLarge = true;
+                body.reset();
+                throw new IOException( "Sub-response exceeds the limit of " + maxSize + " bytes" );
+            }
+            body.write( b, off, len );
+        }
+
+        String getBody() {
+            if ( writer != null ) {
+                writer.flush();
+            }
+            try {
+                return body.toString( characterEncoding );
+            } catch ( UnsupportedEncodingException e ) {
+                return body.toString();
+            }
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            if ( outputStream == null ) {
+                outputStream = new ServletOutputStream() {
+                    @Override
+                    public void write( int b ) throws IOException {
+                        append( new byte[] { ( byte ) b }, 0, 1 );
+                    }
+
+                    @Override
+                    public void write( byte[] b, int off, int len ) throws IOException {
+                        append( b, off, len );
+                    }
+
+                    @Override
+                    public boolean isReady() {
+                        return true;
+                    }
+
+                    @Override
+                    public void setWriteListener( WriteListener writeListener ) {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+            return outputStream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws UnsupportedEncodingException {
+            if ( writer == null ) {
+                Writer out = new OutputStreamWriter( getOutputStream(), characterEncoding );
+                writer = new PrintWriter( out );
+            }
+            return writer;
+        }
+
+        @Override
+        public void setStatus( int sc ) {
+            this.status = sc;
+        }
+
+        @Override
+        public int getStatus() {
+            return status;
+        }
+
+        @Override
+        public void sendError( int sc ) {
+            this.status = sc;
+        }
+
+        @Override
+        public void sendError( int sc, String msg ) {
+            this.status = sc;
+            body.reset();
+            byte[] bytes = String.valueOf( msg ).getBytes( StandardCharsets.UTF_8 );
+            body.write( bytes, 0, bytes.length );
+        }
+
+        @Override
+        public void sendRedirect( String location ) {
+            this.status = HttpServletResponse.SC_FOUND;
+            headers.put( "Location", location );
+        }
+
+        @Override
+        public void setStatus( int sc, String sm ) {
+            this.status = sc;
+        }
+
+        @Override
+        public void setContentType( String type ) {
+            this.contentType = type;
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+
+        @Override
+        public void setCharacterEncoding( String charset ) {
+            if ( writer == null ) {
+                this.characterEncoding = charset;
+            }
+        }
+
+        @Override
+        public String getCharacterEncoding() {
+            return characterEncoding;
+        }
+
+        @Override
+        public void setHeader( String name, String value ) {
+            headers.put( name, value );
+        }
+
+        @Override
+        public void addHeader( String name, String value ) {
+            headers.put( name, value );
+        }
+
+        @Override
+        public void setIntHeader( String name, int value ) {
+            headers.put( name, String.valueOf( value ) );
+        }
+
+        @Override
+        public void addIntHeader( String name, int value ) {
+            headers.put( name, String.valueOf( value ) );
+        }
+
+        @Override
+        public void setDateHeader( String name, long date ) {
+            headers.put( name, String.valueOf( date ) );
+        }
+
+        @Override
+        public void addDateHeader( String name, long date ) {
+            headers.put( name, String.valueOf( date ) );
+        }
+
+        // 子请求的Cookie和Locale与其它响应头一样只记录下来，不能写到批量请求的响应上（并行时还在工作线程中）
+        @Override
+        public void addCookie( Cookie cookie ) {
+            headers.put( "Set-Cookie", cookie.getName() + "=" + cookie.getValue() );
+        }
+
+        @Override
+        public void setLocale( Locale locale ) {
+            this.locale = locale;
+        }
+
+        @Override
+        public Locale getLocale() {
+            return locale != null ? locale : super.getLocale();
+        }
+
+        @Override
+        public void setBufferSize( int size ) {
+        }
+
+        @Override
+        public int getBufferSize() {
+            return 0;
+        }
+
+        @Override
+        public boolean containsHeader( String name ) {
+            return headers.containsKey( name );
+        }
+
+        @Override
+        public String getHeader( String name ) {
+            return headers.get( name );
+        }
+
+        @Override
+        public void setContentLength( int len ) {
+        }
+
+        @Override
+        public void setContentLengthLong( long len ) {
+        }
+
+        @Override
+        public void flushBuffer() {
+        }
+
+        @Override
+        public boolean isCommitted() {
+            return false;
+        }
+
+        @Override
+        public void resetBuffer() {
+            body.reset();
+        }
+
+        @Override
+        public void reset() {
+            body.reset();
+            headers.clear();
+            status = HttpServletResponse.SC_OK;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package spring.framework.v3;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 固定大小byte[]的有界对象池，池空时临时分配，池满时归还的数组直接丢弃交给GC
+ */
+class BufferPool {
+    private final BlockingQueue< byte[] > pool;
+    private final int bufferSize;
+
+    BufferPool( int capacity, int bufferSize ) {
+        this.pool = new ArrayBlockingQueue<>( Math.max( 1, capacity ) );
+        this.bufferSize = bufferSize;
+    }
+
+    byte[] borrow() {
+        byte[] buffer = pool.poll();
+        return buffer != null ? buffer : new byte[ bufferSize ];
+    }
+
+    void release( byte[] buffer ) {
+        if ( buffer.length == bufferSize ) {
+            pool.offer( buffer );
+        }
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+}
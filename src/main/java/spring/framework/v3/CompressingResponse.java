@@ -0,0 +1,294 @@
+package spring.framework.v3;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * 按需压缩的响应包装
+ * 先把输出缓存在内存中，超过阈值时才决定是否压缩：内容类型可压缩并且Controller没有自己设置
+ * Content-Encoding时切换为压缩输出，否则原样输出。响应结束前都没超过阈值的直接原样输出。
+ */
+class CompressingResponse extends HttpServletResponseWrapper {
+    // gzip固定头：魔数、deflate算法、无标志位、无时间戳、未知操作系统
+    private static final byte[] GZIP_HEADER = { 0x1f, ( byte ) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, ( byte ) 0xff };
+
+    private final ResponseCompressor compressor;
+    private final String encoding;
+    private final int minSize;
+    // 为null时不缓存压缩结果
+    private String cacheKey;
+    private final int maxCacheEntrySize;
+
+    private CompressingStream stream;
+    private PrintWriter writer;
+    // Controller设置的Content-Length，只有不压缩时才有效
+    private long contentLength = -1;
+
+    CompressingResponse( HttpServletResponse response, ResponseCompressor compressor, String encoding,
+                         int minSize, String cacheKey, int maxCacheEntrySize ) {
+        super( response );
+        this.compressor = compressor;
+        this.encoding = encoding;
+        this.minSize = minSize;
+        this.cacheKey = cacheKey;
+        this.maxCacheEntrySize = maxCacheEntrySize;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+        if ( writer != null ) {
+            throw new IllegalStateException( "getWriter() has already been called" );
+        }
+        if ( stream == null ) {
+            stream = new CompressingStream();
+        }
+        return stream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if ( writer != null ) {
+            return writer;
+        }
+        if ( stream != null ) {
+            throw new IllegalStateException( "getOutputStream() has already been called" );
+        }
+        stream = new CompressingStream();
+        writer = new PrintWriter( new OutputStreamWriter( stream, getCharacterEncoding() ) );
+        return writer;
+    }
+
+    @Override
+    public void setContentLength( int len ) {
+        this.contentLength = len;
+    }
+
+    @Override
+    public void setContentLengthLong( long len ) {
+        this.contentLength = len;
+    }
+
+    @Override
+    public void setHeader( String name, String value ) {
+        if ( "Content-Length".equalsIgnoreCase( name ) ) {
+            contentLength = Long.parseLong( value );
+            return;
+        }
+        super.setHeader( name, value );
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        if ( writer != null ) {
+            writer.flush();
+        }
+        if ( stream != null ) {
+            stream.flush();
+        }
+    }
+
+    @Override
+    public void resetBuffer() {
+        if ( stream != null && stream.buffer != null ) {
+            stream.buffer.reset();
+        }
+        super.resetBuffer();
+    }
+
+    @Override
+    public void reset() {
+        resetBuffer();
+        contentLength = -1;
+        super.reset();
+    }
+
+    /**
+     * Controller调用结束后必须调用，把剩余数据写出并归还Deflater
+     */
+    void finish() throws IOException {
+        if ( writer != null ) {
+            writer.flush();
+        }
+        if ( stream == null ) {
+            if ( contentLength >= 0 ) {
+                super.setContentLengthLong( contentLength );
+            }
+            return;
+        }
+        stream.finish();
+    }
+
+    private class CompressingStream extends ServletOutputStream {
+        // 决定是否压缩之前的缓冲，决定之后置为null
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream( Math.min( minSize, 8192 ) );
+        private OutputStream target;
+        private Deflater deflater;
+        private CRC32 crc;
+        private byte[] deflateBuffer;
+        // 同时保留一份压缩结果用于缓存，超出大小后放弃
+        private ByteArrayOutputStream cacheCopy;
+        private boolean finished;
+
+        @Override
+        public void write( int b ) throws IOException {
+            write( new byte[] { ( byte ) b }, 0, 1 );
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len ) throws IOException {
+            if ( finished ) {
+                throw new IOException( "Response has already been finished" );
+            }
+            if ( buffer != null ) {
+                buffer.write( b, off, len );
+                if ( buffer.size() > minSize ) {
+                    decide();
+                }
+                return;
+            }
+            if ( deflater == null ) {
+                target.write( b, off, len );
+                return;
+            }
+            if ( crc != null ) {
+                crc.update( b, off, len );
+            }
+            deflater.setInput( b, off, len );
+            while ( !deflater.needsInput() ) {
+                writeCompressed( deflater.deflate( deflateBuffer, 0, deflateBuffer.length, Deflater.NO_FLUSH ) );
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            // 尚未超过阈值时继续缓存，否则压缩率和Content-Length都无从谈起
+            if ( buffer != null || finished ) {
+                return;
+            }
+            if ( deflater != null ) {
+                int count;
+                do {
+                    count = deflater.deflate( deflateBuffer, 0, deflateBuffer.length, Deflater.SYNC_FLUSH );
+                    writeCompressed( count );
+                } while ( count == deflateBuffer.length );
+            }
+            target.flush();
+        }
+
+        /**
+         * 缓冲超过阈值，决定本次响应是否压缩
+         */
+        private void decide() throws IOException {
+            byte[] buffered = buffer.toByteArray();
+            buffer = null;
+            HttpServletResponse response = ( HttpServletResponse ) getResponse();
+            String contentType = getContentType();
+            // 通过Writer输出又没有声明类型的，按文本处理
+            boolean compressible = contentType == null ? writer != null : compressor.isCompressible( contentType );
+            if ( !compressible || containsHeader( "Content-Encoding" ) ) {
+                cacheKey = null;
+                if ( contentLength >= 0 ) {
+                    response.setContentLengthLong( contentLength );
+                }
+                target = response.getOutputStream();
+                target.write( buffered );
+                return;
+            }
+
+            response.setHeader( "Content-Encoding", encoding );
+            response.addHeader( "Vary", "Accept-Encoding" );
+            target = response.getOutputStream();
+            deflater = compressor.getPool( encoding ).borrow();
+            deflateBuffer = new byte[ 8192 ];
+            if ( cacheKey != null ) {
+                cacheCopy = new ByteArrayOutputStream();
+            }
+            if ( ResponseCompressor.GZIP.equals( encoding ) ) {
+                crc = new CRC32();
+                writeRaw( GZIP_HEADER, GZIP_HEADER.length );
+            }
+            write( buffered, 0, buffered.length );
+        }
+
+        private void finish() throws IOException {
+            if ( finished ) {
+                return;
+            }
+            if ( buffer != null ) {
+                // 没有超过阈值，原样输出并给出准确的Content-Length
+                byte[] buffered = buffer.toByteArray();
+                buffer = null;
+                finished = true;
+                HttpServletResponse response = ( HttpServletResponse ) getResponse();
+                response.setContentLength( buffered.length );
+                response.getOutputStream().write( buffered );
+                return;
+            }
+            finished = true;
+            if ( deflater == null ) {
+                return;
+            }
+            try {
+                deflater.finish();
+                while ( !deflater.finished() ) {
+                    writeCompressed( deflater.deflate( deflateBuffer ) );
+                }
+                if ( crc != null ) {
+                    byte[] trailer = new byte[ 8 ];
+                    writeIntLE( trailer, 0, crc.getValue() );
+                    writeIntLE( trailer, 4, deflater.getBytesRead() );
+                    writeRaw( trailer, trailer.length );
+                }
+            } finally {
+                compressor.getPool( encoding ).release( deflater );
+                deflater = null;
+            }
+            if ( cacheCopy != null ) {
+                compressor.store( cacheKey, ( HttpServletResponse ) getResponse(), getContentType(), cacheCopy.toByteArray() );
+            }
+        }
+
+        private void writeCompressed( int count ) throws IOException {
+            if ( count > 0 ) {
+                writeRaw( deflateBuffer, count );
+            }
+        }
+
+        private void writeRaw( byte[] bytes, int count ) throws IOException {
+            target.write( bytes, 0, count );
+            if ( cacheCopy != null ) {
+                if ( cacheCopy.size() + count > maxCacheEntrySize ) {
+                    cacheCopy = null;
+                } else {
+                    cacheCopy.write( bytes, 0, count );
+                }
+            }
+        }
+
+        private void writeIntLE( byte[] bytes, int offset, long value ) {
+            bytes[ offset ] = ( byte ) value;
+            bytes[ offset + 1 ] = ( byte ) ( value >> 8 );
+            bytes[ offset + 2 ] = ( byte ) ( value >> 16 );
+            bytes[ offset + 3 ] = ( byte ) ( value >> 24 );
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener( WriteListener writeListener ) {
+            throw new UnsupportedOperationException( "Non-blocking output is not supported on compressed responses" );
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package spring.framework.v3;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * 单个Handler的自适应并发限制器
+ * 采用AIMD策略：延迟接近基线时线性放大并发上限，延迟明显高于基线时按比例缩小上限，
+ * 全部状态都用原子变量维护，请求线程之间不加锁。
+ * <p>
+ * 基线取最近两个窗口（每个窗口baselineWindow个样本）内的最小延迟：短暂过载时缩小上限就能让部分请求
+ * 重新变快，窗口最小值不受慢样本影响；只有连续两个窗口都没有快样本，说明延迟确实迁移到了新的稳态，
+ * 基线才会跟上去，否则一次偶然的极快样本会让之后所有正常请求都被当作过载。
+ * 一次缩小之前就已经在执行的请求反映的是旧的上限，它们变慢不再重复缩小。
+ */
+class ConcurrencyLimiter {
+    // 延迟比基线至少慢这么多才认为是过载，避免微秒级接口因抖动被误判
+    private static final long MIN_SLOWDOWN_NANOS = TimeUnit.MILLISECONDS.toNanos( 1 );
+
+    private final int minLimit;
+    private final int maxLimit;
+    // 过载时上限的缩小比例
+    private final double backoffRatio;
+    // 延迟超过基线多少倍视为过载
+    private final double tolerance;
+
+    // 当前允许的并发数
+    private final AtomicInteger limit;
+    // 正在执行的请求数
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // 线性增长计数，每累计limit个正常请求，上限加1
+    private final AtomicInteger successes = new AtomicInteger();
+    // 每个基线窗口包含的样本数
+    private final int baselineWindow;
+    // 当前窗口和上一个窗口的最小延迟（纳秒），二者较小的一个就是空载延迟基线
+    private final AtomicLong windowMinNanos = new AtomicLong( Long.MAX_VALUE );
+    private final AtomicLong previousWindowMinNanos = new AtomicLong( Long.MAX_VALUE );
+    private final AtomicInteger windowSamples = new AtomicInteger();
+    // 上一次缩小上限的时间，在此之前开始的请求不再触发缩小
+    private final AtomicLong lastDecreaseNanos;
+    private final LongSupplier clock;
+
+    ConcurrencyLimiter( int initialLimit, int minLimit, int maxLimit, double backoffRatio, double tolerance, int baselineWindow ) {
+        this( initialLimit, minLimit, maxLimit, backoffRatio, tolerance, baselineWindow, System::nanoTime );
+    }
+
+    /**
+     * @param clock 纳秒时钟，测试时可以替换
+     */
+    ConcurrencyLimiter( int initialLimit, int minLimit, int maxLimit, double backoffRatio, double tolerance,
+                        int baselineWindow, LongSupplier clock ) {
+        this.minLimit = Math.max( 1, minLimit );
+        this.maxLimit = Math.max( this.minLimit, maxLimit );
+        this.backoffRatio = backoffRatio;
+        this.tolerance = tolerance;
+        this.baselineWindow = Math.max( 1, baselineWindow );
+        this.clock = clock;
+        this.lastDecreaseNanos = new AtomicLong( clock.getAsLong() );
+        this.limit = new AtomicInteger( Math.min( this.maxLimit, Math.max( this.minLimit, initialLimit ) ) );
+    }
+
+    /**
+     * 尝试占用一个并发名额，超过当前上限时立即返回false
+     */
+    boolean tryAcquire() {
+        for ( ; ; ) {
+            int current = inFlight.get();
+            if ( current >= limit.get() ) {
+                return false;
+            }
+            if ( inFlight.compareAndSet( current, current + 1 ) ) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 归还名额，并根据本次请求的耗时调整上限
+     *
+     * @param latencyNanos 本次请求耗时
+     */
+    void release( long latencyNanos ) {
+        long now = clock.getAsLong();
+        int inFlightBefore = inFlight.getAndDecrement();
+        // 先和已有的基线比较，本次样本再计入窗口
+        long baseline = getBaselineNanos();
+        boolean overloaded = baseline != Long.MAX_VALUE
+                && latencyNanos > baseline * tolerance && latencyNanos - baseline > MIN_SLOWDOWN_NANOS;
+        recordSample( latencyNanos );
+
+        if ( overloaded ) {
+            successes.set( 0 );
+            // 每个窗口最多乘性减小一次：只有在上一次缩小之后才开始的请求能触发下一次
+            long last = lastDecreaseNanos.get();
+            if ( now - latencyNanos > last && lastDecreaseNanos.compareAndSet( last, now ) ) {
+                limit.updateAndGet( l -> Math.max( minLimit, ( int ) ( l * backoffRatio ) ) );
+            }
+            return;
+        }
+
+        // 只有并发名额确实被用到一半以上时才放大，空闲的路由不需要更高的上限
+        int current = limit.get();
+        if ( inFlightBefore * 2 < current ) {
+            return;
+        }
+        if ( successes.incrementAndGet() >= current ) {
+            successes.set( 0 );
+            limit.updateAndGet( l -> Math.min( maxLimit, l + 1 ) );
+        }
+    }
+
+    /**
+     * 归还名额但不提供延迟样本，用于请求在进入Handler之前就结束的情况
+     */
+    void cancel() {
+        inFlight.decrementAndGet();
+    }
+
+    private void recordSample( long latencyNanos ) {
+        windowMinNanos.accumulateAndGet( latencyNanos, Math::min );
+        int samples = windowSamples.incrementAndGet();
+        // 窗口满了就轮换，只有一个线程能轮换成功；并发时个别样本落在哪个窗口无关紧要
+        if ( samples >= baselineWindow && windowSamples.compareAndSet( samples, 0 ) ) {
+            previousWindowMinNanos.set( windowMinNanos.getAndSet( Long.MAX_VALUE ) );
+        }
+    }
+
+    long getBaselineNanos() {
+        return Math.min( windowMinNanos.get(), previousWindowMinNanos.get() );
+    }
+
+    int getLimit() {
+        return limit.get();
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+}
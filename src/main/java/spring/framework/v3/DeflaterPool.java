@@ -0,0 +1,35 @@
+package spring.framework.v3;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * 有界的Deflater对象池
+ * Deflater内部持有native的zlib状态，每个请求都new一个既慢又依赖finalize回收，
+ * 这里复用已经reset过的实例，池满时多出来的实例直接end()释放。
+ */
+class DeflaterPool {
+    private final BlockingQueue< Deflater > pool;
+    private final int level;
+    // true时输出不带zlib头尾的原始deflate数据，用于gzip
+    private final boolean nowrap;
+
+    DeflaterPool( int capacity, int level, boolean nowrap ) {
+        this.pool = new ArrayBlockingQueue<>( Math.max( 1, capacity ) );
+        this.level = level;
+        this.nowrap = nowrap;
+    }
+
+    Deflater borrow() {
+        Deflater deflater = pool.poll();
+        return deflater != null ? deflater : new Deflater( level, nowrap );
+    }
+
+    void release( Deflater deflater ) {
+        deflater.reset();
+        if ( !pool.offer( deflater ) ) {
+            deflater.end();
+        }
+    }
+}
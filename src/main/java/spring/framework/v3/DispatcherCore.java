@@ -0,0 +1,838 @@
+package spring.framework.v3;
+
+import spring.framework.annotation.*;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 与传输方式无关的分发核心
+ * 负责IOC容器、HandlerMapping以及请求的路由、参数绑定和调用。请求和响应统一使用HttpServletRequest/
+ * HttpServletResponse接口（Controller的方法签名就是这两个类型），在容器中由MyDispatcherServlet传入容器的对象，
+ * 独立运行时由NioHttpServer传入LocalExchange生成的对象。
+ */
+public class DispatcherCore {
+    // 标记预热时发出的本地请求
+    private static final String WARMUP_ATTRIBUTE = DispatcherCore.class.getName() + ".WARMUP";
+    // 标记批量调用的子请求：输出收集在内存中，流式Handler返回501，也不查找静态资源和JSP
+    static final String SUB_REQUEST_ATTRIBUTE = DispatcherCore.class.getName() + ".SUB_REQUEST";
+
+    // 通过web.xml中配置的配置文件信息，查找application.properties
+    private Properties configContext = new Properties();
+    // 存储所有扫描到的类
+    private List< String > classNames = new ArrayList< String >();
+    // IOC容器，保存所有实例化对象
+    // 注册式单例模式
+    private Map< String, Object > ioc = new HashMap< String, Object >();
+
+    //保存Contrller中所有Mapping的对应关系
+    private List< Handler > handlerMapping = new ArrayList<>();
+    // 按URL分组、按请求方法索引的路由表，405和OPTIONS直接由它回答
+    private List< Route > routeMapping = new ArrayList<>();
+
+    // 静态资源处理器，没有配置static.location时为null
+    private ResourceHandler resourceHandler;
+    // 响应压缩，compression.enabled=false时为null
+    private ResponseCompressor responseCompressor;
+    // 批量调用入口，batch.enabled=false时为null
+    private BatchHandler batchHandler;
+    // multipart/form-data请求体解析，multipart.enabled=false时为null
+    private MultipartParser multipartParser;
+
+    // 记录启动过程中各阶段的耗时
+    private StartupProfiler startupProfiler = new StartupProfiler();
+    // init以及预热都结束后才为true，此前就绪检查返回503
+    private volatile boolean ready;
+
+    public void service( HttpServletRequest req, HttpServletResponse resp ) throws IOException {
+        try {
+            // 委派模式
+            doDispatch( req, resp );
+        } catch ( InvocationTargetException | IllegalAccessException | ServletException e ) {
+            e.printStackTrace();
+            resp.getWriter().write( "500 Excetion Detail:" + Arrays.toString( e.getStackTrace() ) );
+        }
+    }
+
+    private void doDispatch( HttpServletRequest req, HttpServletResponse resp ) throws IOException, InvocationTargetException, IllegalAccessException, ServletException {
+        if ( handleStartupEndpoint( req, resp ) ) {
+            return;
+        }
+        if ( batchHandler != null && batchHandler.matches( getRequestPath( req ) ) ) {
+            // HEAD和OPTIONS不能去执行子请求
+            if ( acceptsMethod( req, resp, RequestMethod.GET, RequestMethod.POST ) ) {
+                batchHandler.handle( req, resp );
+            }
+            return;
+        }
+
+        Route route = getRoute( req );
+
+        // 子请求不读取文件：整个文件会被收集到内存里，JSP转发也不能在批量线程上并发使用同一个容器请求
+        if ( route == null && resourceHandler != null && req.getAttribute( SUB_REQUEST_ATTRIBUTE ) == null
+                && resourceHandler.handle( req, resp, getRequestPath( req ) ) ) {
+            return;
+        }
+        if ( route == null ) {
+            //如果没有匹配上，返回404错误
+            resp.setStatus( HttpServletResponse.SC_NOT_FOUND );
+            resp.getWriter().write( "404 Not Found" );
+            return;
+        }
+
+        RequestMethod requestMethod = RequestMethod.resolve( req.getMethod() );
+        Handler handler = route.getHandler( requestMethod );
+        if ( handler == null ) {
+            // 没有单独映射OPTIONS时由路由表直接回答，不调用Controller
+            rejectMethod( requestMethod, resp, route.allow );
+            return;
+        }
+        // HEAD借用GET的Handler时只计算响应体长度，不输出
+        if ( requestMethod == RequestMethod.HEAD && !handler.accepts( RequestMethod.HEAD ) ) {
+            HeadResponse headResponse = new HeadResponse( resp );
+            doInvoke( handler, req, headResponse, true );
+            headResponse.finish();
+            return;
+        }
+        doInvoke( handler, req, resp, false );
+    }
+
+    /**
+     * 内置入口只接受固定的请求方法，其它方法按路由表的规则回答
+     *
+     * @return 请求方法被接受时返回true
+     */
+    private boolean acceptsMethod( HttpServletRequest req, HttpServletResponse resp, RequestMethod... methods ) throws IOException {
+        RequestMethod requestMethod = RequestMethod.resolve( req.getMethod() );
+        StringBuilder allow = new StringBuilder();
+        for ( RequestMethod method : methods ) {
+            if ( method == requestMethod ) {
+                return true;
+            }
+            allow.append( method.name() ).append( ", " );
+        }
+        rejectMethod( requestMethod, resp, allow.append( RequestMethod.OPTIONS.name() ).toString() );
+        return false;
+    }
+
+    /**
+     * OPTIONS只回答Allow，其它不支持的方法返回405
+     */
+    private void rejectMethod( RequestMethod requestMethod, HttpServletResponse resp, String allow ) throws IOException {
+        resp.setHeader( "Allow", allow );
+        if ( requestMethod == RequestMethod.OPTIONS ) {
+            resp.setContentLength( 0 );
+            return;
+        }
+        resp.setStatus( HttpServletResponse.SC_METHOD_NOT_ALLOWED );
+        resp.getWriter().write( "405 Method Not Allowed" );
+    }
+
+    /**
+     * 限流、压缩并调用Handler
+     *
+     * @param headOnly 为true时响应体会被丢弃，流式响应也不再推送
+     */
+    private void doInvoke( Handler handler, HttpServletRequest req, HttpServletResponse resp, boolean headOnly ) throws IOException, InvocationTargetException, IllegalAccessException {
+        // 命中压缩结果缓存时直接输出，不占用并发名额
+        String encoding = responseCompressor == null ? null : responseCompressor.negotiate( req );
+        if ( encoding != null && responseCompressor.serveCached( req, resp, encoding ) ) {
+            return;
+        }
+        // 流式响应要逐条flush，不经过压缩的缓冲；没有流式通道时不能把整个流攒在内存里，直接拒绝
+        boolean streaming = ResponseEmitter.class.isAssignableFrom( handler.method.getReturnType() );
+        if ( streaming && req.getAttribute( SUB_REQUEST_ATTRIBUTE ) != null ) {
+            resp.setStatus( HttpServletResponse.SC_NOT_IMPLEMENTED );
+            resp.getWriter().write( "501 Not Implemented: streaming responses are not supported here" );
+            return;
+        }
+
+        // 预热请求不占用并发名额，冷启动时的慢样本也不能影响线上流量的限流
+        ConcurrencyLimiter limiter = req.getAttribute( WARMUP_ATTRIBUTE ) == null ? handler.limiter : null;
+        // 超过该路由的并发上限时直接拒绝，不做参数绑定和调用，避免慢接口占满容器线程
+        if ( limiter != null && !limiter.tryAcquire() ) {
+            resp.setStatus( HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+            resp.setHeader( "Retry-After", configContext.getProperty( "concurrency.retryAfter", "1" ) );
+            resp.getWriter().write( "503 Service Unavailable" );
+            return;
+        }
+        // 上传的内容只在Handler调用期间有效，需要保留的文件由Controller自行transferTo
+        MultipartParser.MultipartRequest multipart = null;
+        if ( multipartParser != null && handler.bindsParams && MultipartParser.isMultipart( req ) ) {
+            try {
+                multipart = multipartParser.parse( req );
+            } catch ( IOException | RuntimeException e ) {
+                // 没有调用Handler，不产生延迟样本
+                if ( limiter != null ) {
+                    limiter.cancel();
+                }
+                if ( !( e instanceof MultipartSizeException ) && !( e instanceof MultipartParseException ) ) {
+                    throw e;
+                }
+                // 请求体没有读完，连接不能再复用
+                resp.setHeader( "Connection", "close" );
+                if ( e instanceof MultipartSizeException ) {
+                    resp.setStatus( HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE );
+                    resp.getWriter().write( "413 Payload Too Large: " + e.getMessage() );
+                } else {
+                    resp.setStatus( HttpServletResponse.SC_BAD_REQUEST );
+                    resp.getWriter().write( "400 Bad Request: " + e.getMessage() );
+                }
+                return;
+            }
+        }
+        // 上传耗时取决于客户端网速，延迟从解析完成后开始计算，只反映Handler本身的快慢
+        long start = System.nanoTime();
+        Object result;
+        try {
+            CompressingResponse compressingResponse = encoding == null || streaming ? null : responseCompressor.wrap( req, resp, encoding );
+            if ( compressingResponse == null ) {
+                result = invokeHandler( handler, req, resp, multipart );
+            } else {
+                try {
+                    result = invokeHandler( handler, req, compressingResponse, multipart );
+                } finally {
+                    compressingResponse.finish();
+                }
+            }
+        } finally {
+            if ( multipart != null ) {
+                multipart.release();
+            }
+            // 流式响应的并发名额在Controller返回时就归还，后续推送不占用容器线程
+            if ( limiter != null ) {
+                limiter.release( System.nanoTime() - start );
+            }
+        }
+
+        if ( result instanceof ResponseEmitter ) {
+            if ( headOnly ) {
+                ( ( ResponseEmitter ) result ).discard( resp );
+            } else {
+                startStreaming( ( ResponseEmitter ) result, req, resp );
+            }
+        }
+    }
+
+    /**
+     * 容器支持异步时通过WriteListener非阻塞地输出；独立运行时由NioHttpServer提供的StreamingTransport接管，
+     * 同样不占用调用Controller的线程；两者都没有时（预热请求）才在当前线程上阻塞输出
+     */
+    private void startStreaming( ResponseEmitter emitter, HttpServletRequest req, HttpServletResponse resp ) throws IOException {
+        long timeout = Long.parseLong( configContext.getProperty( "streaming.timeout", "0" ) );
+        ResponseEmitter.StreamingTransport transport =
+                ( ResponseEmitter.StreamingTransport ) req.getAttribute( ResponseEmitter.StreamingTransport.ATTRIBUTE );
+        if ( req.isAsyncSupported() ) {
+            emitter.startAsync( req, resp, timeout );
+        } else if ( transport != null ) {
+            emitter.startDetached( resp, transport, timeout );
+        } else {
+            emitter.writeBlocking( resp );
+        }
+    }
+
+    private Object invokeHandler( Handler handler, HttpServletRequest req, HttpServletResponse resp,
+                                  MultipartParser.MultipartRequest multipart ) throws InvocationTargetException, IllegalAccessException {
+        Class< ? >[] parameterTypes = handler.method.getParameterTypes();
+        Object[] paramValues = new Object[ parameterTypes.length ];
+
+        // 取得请求中的所有参数，multipart请求再合并表单字段
+        Map< String, String[] > paramMap = req.getParameterMap();
+        if ( multipart != null ) {
+            paramMap = new LinkedHashMap<>( paramMap );
+            paramMap.putAll( multipart.getFields() );
+        }
+        paramMap.forEach( ( k, v ) -> {
+            String value = Arrays.toString( v ).replaceAll( "\\[|]", "" )
+                    .replaceAll( "\\s", "," );
+            if ( handler.paramIndexMapping.containsKey( k ) ) {
+                Integer index = handler.paramIndexMapping.get( k );
+                if ( parameterTypes[ index ] != MultipartFile.class ) {
+                    paramValues[ index ] = convert( parameterTypes[ index ], value );
+                }
+            }
+        } );
+        if ( multipart != null ) {
+            handler.paramIndexMapping.forEach( ( name, index ) -> {
+                if ( parameterTypes[ index ] == MultipartFile.class ) {
+                    paramValues[ index ] = multipart.getFile( name );
+                }
+            } );
+        }
+        // 返回ResponseEmitter的方法通常不需要request/response参数
+        Integer reqIndex = handler.paramIndexMapping.get( HttpServletRequest.class.getName() );
+        if ( reqIndex != null ) {
+            paramValues[ reqIndex ] = req;
+        }
+        Integer respIndex = handler.paramIndexMapping.get( HttpServletResponse.class.getName() );
+        if ( respIndex != null ) {
+            paramValues[ respIndex ] = resp;
+        }
+
+        return handler.method.invoke( handler.controller, paramValues );
+    }
+
+    private Object convert( Class< ? > type, String value ) {
+        if ( Integer.class == type ) {
+            return Integer.valueOf( value );
+        }
+        return value;
+    }
+
+    private Route getRoute( HttpServletRequest req ) {
+        if ( routeMapping.isEmpty() ) {
+            return null;
+        }
+        String url = getRequestPath( req );
+
+        for ( Route route : routeMapping ) {
+            Matcher matcher = route.pattern.matcher( url );
+            //如果没有匹配上继续下一个匹配
+            if ( !matcher.matches() ) {
+                continue;
+            }
+
+            return route;
+        }
+        return null;
+    }
+
+    /**
+     * 启动报告、启动时间线和就绪检查，三者都只接受GET
+     *
+     * @return 请求路径是这三者之一时返回true
+     */
+    private boolean handleStartupEndpoint( HttpServletRequest req, HttpServletResponse resp ) throws IOException {
+        String path = getRequestPath( req );
+        if ( !path.equals( configContext.getProperty( "startup.readinessPath", "/ready" ) )
+                && !path.equals( configContext.getProperty( "startup.reportPath", "/startup" ) )
+                && !path.equals( configContext.getProperty( "startup.timelinePath", "/startup/timeline" ) ) ) {
+            return false;
+        }
+        if ( !acceptsMethod( req, resp, RequestMethod.GET ) ) {
+            return true;
+        }
+        if ( path.equals( configContext.getProperty( "startup.readinessPath", "/ready" ) ) ) {
+            if ( !ready ) {
+                resp.setStatus( HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+                resp.setHeader( "Retry-After", "1" );
+            }
+            resp.getWriter().write( ready ? "READY" : "STARTING" );
+            return true;
+        }
+        if ( path.equals( configContext.getProperty( "startup.reportPath", "/startup" ) ) ) {
+            resp.setContentType( "application/json;charset=UTF-8" );
+            resp.getWriter().write( startupProfiler.toJson( ready ) );
+            return true;
+        }
+        if ( path.equals( configContext.getProperty( "startup.timelinePath", "/startup/timeline" ) ) ) {
+            resp.setContentType( "text/plain;charset=UTF-8" );
+            resp.getWriter().write( startupProfiler.toTimeline() );
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 已加载的配置，独立运行时用来读取server.*配置
+     */
+    public Properties getConfig() {
+        return configContext;
+    }
+
+    public void destroy() {
+        if ( batchHandler != null ) {
+            batchHandler.destroy();
+        }
+    }
+
+    /**
+     * 去掉contextPath后的请求路径
+     */
+    private String getRequestPath( HttpServletRequest req ) {
+        String url = req.getRequestURI();
+        String contextPath = req.getContextPath();
+        return url.replace( contextPath, "" ).replaceAll( "/+", "/" );
+    }
+
+    /**
+     * 初始化容器
+     *
+     * @param configLocation classpath下配置文件的路径
+     * @param servletContext 运行在servlet容器中时传入，独立运行时为null
+     */
+    public void init( String configLocation, ServletContext servletContext ) {
+        StartupProfiler.Step step;
+
+        //1.加载配置文件
+        step = startupProfiler.beginPhase( "doLoadConfig" );
+        doLoadConfig( configLocation );
+        step.end( configContext.size() );
+        //2.扫描相关的类
+        step = startupProfiler.beginPhase( "doScaner" );
+        doScaner( configContext.getProperty( "scanPackage" ) );
+        step.end( classNames.size() );
+        //3.初始化所有相关类的实例，并放入到IOC容器中
+        step = startupProfiler.beginPhase( "doInstance" );
+        doInstance();
+        step.end( countBeans() );
+        //4.完成依赖注入
+        step = startupProfiler.beginPhase( "doAutowired" );
+        doAutowired();
+        step.end( countBeans() );
+        //5.初始化HandlerMapping
+        step = startupProfiler.beginPhase( "initHanlderMapping" );
+        initHanlderMapping();
+        step.end( handlerMapping.size() );
+        //6.初始化静态资源处理、压缩、批量调用等Web组件
+        step = startupProfiler.beginPhase( "initWebComponents" );
+        initResourceHandler( servletContext );
+        if ( Boolean.parseBoolean( configContext.getProperty( "compression.enabled", "true" ) ) ) {
+            responseCompressor = new ResponseCompressor( configContext );
+        }
+        if ( Boolean.parseBoolean( configContext.getProperty( "batch.enabled", "true" ) ) ) {
+            batchHandler = new BatchHandler( configContext.getProperty( "batch.path", "/batch" ),
+                    Integer.parseInt( configContext.getProperty( "batch.maxCalls", "20" ) ),
+                    Integer.parseInt( configContext.getProperty( "batch.threads", "8" ) ),
+                    Integer.parseInt( configContext.getProperty( "batch.queueSize", "64" ) ),
+                    Integer.parseInt( configContext.getProperty( "batch.maxResponseSize", "1048576" ) ),
+                    this::doDispatch );
+        }
+        if ( Boolean.parseBoolean( configContext.getProperty( "multipart.enabled", "true" ) ) ) {
+            multipartParser = new MultipartParser( configContext );
+        }
+        step.end( 0 );
+
+        System.out.println( "DengJL Spring Framework initial has finished" );
+        //7.预热，结束后才算就绪
+        doWarmup();
+    }
+
+    /**
+     * 7.在后台线程中反复调用配置的路由，触发类加载和JIT编译，完成后标记为就绪
+     */
+    private void doWarmup() {
+        String calls = configContext.getProperty( "startup.warmup.calls", "" ).trim();
+        if ( "".equals( calls ) ) {
+            ready = true;
+            return;
+        }
+        int iterations = Integer.parseInt( configContext.getProperty( "startup.warmup.iterations", "100" ) );
+        Thread warmup = new Thread( () -> {
+            StartupProfiler.Step step = startupProfiler.beginPhase( "warmup" );
+            OutputStream discard = new OutputStream() {
+                @Override
+                public void write( int b ) {
+                }
+
+                @Override
+                public void write( byte[] b, int off, int len ) {
+                }
+            };
+            int invoked = 0;
+            try {
+                for ( int i = 0; i < iterations; i++ ) {
+                    for ( String call : calls.split( "," ) ) {
+                        LocalExchange exchange = new LocalExchange( "GET", "", call.trim(), discard );
+                        exchange.getRequest().setAttribute( WARMUP_ATTRIBUTE, Boolean.TRUE );
+                        doDispatch( exchange.getRequest(), exchange.getResponse() );
+                        exchange.flush();
+                        invoked++;
+                    }
+                }
+            } catch ( Exception e ) {
+                e.printStackTrace();
+            } finally {
+                step.end( invoked );
+                ready = true;
+                System.out.println( "Warm-up finished after " + invoked + " calls" );
+            }
+        }, "startup-warmup" );
+        warmup.setDaemon( true );
+        warmup.start();
+    }
+
+    /**
+     * IOC容器中不同实例的数量，按接口注册的别名不重复计算
+     */
+    private int countBeans() {
+        Set< Object > beans = Collections.newSetFromMap( new IdentityHashMap<>() );
+        beans.addAll( ioc.values() );
+        return beans.size();
+    }
+
+    /**
+     * 6.初始化静态资源处理，路径以web应用根目录为基准，以file:开头时表示文件系统路径；
+     * 独立运行时没有web应用根目录，改用server.staticLocation，相对路径以工作目录为基准
+     */
+    private void initResourceHandler( ServletContext servletContext ) {
+        String location = configContext.getProperty( servletContext == null ? "server.staticLocation" : "static.location" );
+        if ( location == null || "".equals( location.trim() ) ) {
+            return;
+        }
+        location = location.trim();
+        Path root;
+        if ( location.startsWith( "file:" ) ) {
+            root = Paths.get( location.substring( "file:".length() ) );
+        } else if ( servletContext == null ) {
+            root = Paths.get( location );
+        } else {
+            String realPath = servletContext.getRealPath( location );
+            if ( realPath == null ) {
+                System.out.println( "Static location " + location + " is not available" );
+                return;
+            }
+            root = Paths.get( realPath );
+        }
+        resourceHandler = new ResourceHandler( root, servletContext,
+                configContext.getProperty( "static.welcomeFile", "index.jsp" ),
+                Long.parseLong( configContext.getProperty( "static.cache.maxFileSize", "65536" ) ),
+                Long.parseLong( configContext.getProperty( "static.cache.maxSize", "16777216" ) ) );
+        System.out.println( "Mapped static resources to " + root );
+    }
+
+    /**
+     * 5.初始化HandlerMapping
+     */
+    private void initHanlderMapping() {
+        if ( ioc.isEmpty() ) {
+            return;
+        }
+        for ( Map.Entry< String, Object > entry : ioc.entrySet() ) {
+            Class< ? > clazz = entry.getValue().getClass();
+            if ( !clazz.isAnnotationPresent( Controller.class ) ) {
+                continue;
+            }
+
+            String baseUrl = "";
+            //获取Controller的url配置
+            if ( clazz.isAnnotationPresent( RequestMapping.class ) ) {
+                RequestMapping requestMapping = clazz.getAnnotation( RequestMapping.class );
+                baseUrl = requestMapping.value();
+            }
+
+            //获取Method的url配置
+            Method[] methods = clazz.getMethods();
+            for ( Method method : methods ) {
+
+                //没有加RequestMapping注解的直接忽略
+                if ( !method.isAnnotationPresent( RequestMapping.class ) ) {
+                    continue;
+                }
+
+                //映射URL
+                RequestMapping requestMapping = method.getAnnotation( RequestMapping.class );
+                // 拼装URL，并替换掉多余的/
+                String url = ( "/" + baseUrl + "/" + requestMapping.value() ).replaceAll( "/+", "/" );
+                Pattern pattern = Pattern.compile( url );
+                Handler handler = new Handler( pattern, entry.getValue(), method );
+                handler.limiter = createLimiter( url, requestMapping );
+                handler.methods = requestMapping.method();
+                handlerMapping.add( handler );
+                System.out.println( "Mapped " + url + " " + Arrays.toString( handler.methods ) + "," + method );
+            }
+        }
+
+        // 同一个URL的Handler按请求方法归到一个Route中
+        Map< String, Route > routes = new LinkedHashMap<>();
+        for ( Handler handler : handlerMapping ) {
+            routes.computeIfAbsent( handler.pattern.pattern(), url -> new Route( handler.pattern ) ).add( handler );
+        }
+        for ( Route route : routes.values() ) {
+            route.initAllow();
+            routeMapping.add( route );
+        }
+    }
+
+    /**
+     * 为路由创建并发限制器，优先使用配置文件中的单路由配置，其次是注解上的maxConcurrency
+     */
+    private ConcurrencyLimiter createLimiter( String url, RequestMapping requestMapping ) {
+        if ( !Boolean.parseBoolean( configContext.getProperty( "concurrency.enabled", "true" ) ) ) {
+            return null;
+        }
+        int maxLimit = Integer.parseInt( configContext.getProperty( "concurrency.maxLimit", "50" ) );
+        if ( requestMapping.maxConcurrency() > 0 ) {
+            maxLimit = requestMapping.maxConcurrency();
+        }
+        String routeLimit = configContext.getProperty( "concurrency.limit." + url );
+        if ( routeLimit != null ) {
+            maxLimit = Integer.parseInt( routeLimit.trim() );
+        }
+        return new ConcurrencyLimiter(
+                Integer.parseInt( configContext.getProperty( "concurrency.initialLimit", "20" ) ),
+                Integer.parseInt( configContext.getProperty( "concurrency.minLimit", "1" ) ),
+                maxLimit,
+                Double.parseDouble( configContext.getProperty( "concurrency.backoffRatio", "0.9" ) ),
+                Double.parseDouble( configContext.getProperty( "concurrency.tolerance", "2.0" ) ),
+                Integer.parseInt( configContext.getProperty( "concurrency.baselineWindow", "100" ) ) );
+    }
+
+    /**
+     * 4.完成依赖注入
+     */
+    private void doAutowired() {
+        // 为什么要先循环一遍mapping，再单独循环一遍
+        // 因为可能在设置Autowried的时候，可能对应的对象还没有被初始化，导致报错。
+        for ( Object object : ioc.values() ) {
+            StartupProfiler.Step beanStep = startupProfiler.beginBean( object.getClass().getName() );
+            int injected = 0;
+            // 得到该类中所有成员
+            final Field[] fields = object.getClass().getDeclaredFields();
+            for ( Field field : fields ) {
+                // 处理所有带有Autowired的成员变量，完成自动注入
+                if ( field.isAnnotationPresent( Autowired.class ) ) {
+                    Autowired autowired = field.getAnnotation( Autowired.class );
+                    // 从注解中取出用户自定义的成员变量的别名
+                    String beanName = autowired.value().trim();
+                    if ( "".equals( beanName ) ) {
+                        // 如果没有取到用户自定义的变量名，则设置为变量的类型
+                        beanName = toLowerFirstCase( field.getType().getSimpleName() );
+                    }
+                    // 处理私有成员变量
+                    field.setAccessible( true );
+                    try {
+                        // 在mapping中找到对应实例，注入到该成员变量中
+                        field.set( object, ioc.get( beanName ) );
+                        injected++;
+                    } catch ( IllegalAccessException e ) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            beanStep.end( injected );
+        }
+    }
+
+    /**
+     * 3.初始化所有相关类的实例，并放入到IOC容器中
+     */
+    private void doInstance() {
+        for ( String className : classNames ) {
+            if ( !className.contains( "." ) ) {
+                continue;
+            }
+            // 类加载也算在Bean的耗时里
+            StartupProfiler.Step beanStep = startupProfiler.beginBean( className );
+            int created = 0;
+            try {
+                Class< ? > clazz = Class.forName( className );
+                String beanName = toLowerFirstCase( clazz.getSimpleName() );
+                // 处理所有Controller类
+                if ( clazz.isAnnotationPresent( Controller.class ) ) {
+                    // 把满足类型为Controller的类进行实例化，并放入到mapping中
+                    ioc.put( beanName, clazz.newInstance() );
+                    created = 1;
+                } else if ( clazz.isAnnotationPresent( Service.class ) ) {
+                    //1、默认的类名首字母小写
+                    Service service = clazz.getAnnotation( Service.class );
+                    final Object instance = clazz.newInstance();
+                    created = 1;
+                    //2、如果用户自定义了名字，就用用户定义的名字
+                    if ( !"".equals( service.value() ) ) {
+                        beanName = service.value();
+                        ioc.put( beanName, instance );
+                        continue;
+                    }
+
+                    //3、如果没有定义名字，就按接口类型黄建实例
+                    for ( Class< ? > i : clazz.getInterfaces() ) {
+                        if ( ioc.containsKey( i.getName() ) ) {
+                            throw new RuntimeException( "The beanName is exists!!" );
+                        }
+                        ioc.put( toLowerFirstCase( i.getSimpleName() ), instance );
+                    }
+                }
+            } catch ( Exception e ) {
+                e.printStackTrace();
+            } finally {
+                beanStep.end( created );
+            }
+        }
+    }
+
+    /**
+     * 2.载入application.properties
+     *
+     * @param propertiesPath
+     */
+    private void doLoadConfig( String propertiesPath ) {
+        try ( InputStream is = this.getClass().getClassLoader().getResourceAsStream( propertiesPath ) ) {
+            configContext.load( is );
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+    }
+
+    private String toLowerFirstCase( String simpleName ) {
+        char firstChar = simpleName.charAt( 0 );
+        if ( Character.isLowerCase( firstChar ) ) {
+            return simpleName;
+        } else {
+            return Character.toLowerCase( firstChar ) + simpleName.substring( 1 );
+        }
+    }
+
+    /**
+     * 1.扫描配置文件中指定的包路径下的类文件
+     *
+     * @param scanPackage
+     */
+    private void doScaner( final String scanPackage ) {
+        final URL resource = this.getClass().getClassLoader().getResource( scanPackage.replaceAll( "\\.", "/" ) );
+        try {
+            final Path packageDir = Paths.get( resource.toURI() );
+            Files.newDirectoryStream( packageDir ).forEach( path -> {
+                if ( path.toFile().isDirectory() ) {
+                    doScaner( scanPackage + "." + path.getFileName() );
+                } else {
+                    // 存入的类名类似：spring.demo.mvc.DemoAction
+                    String clazzName = ( scanPackage + "." + path.getFileName() ).replace( ".class", "" );
+                    classNames.add( clazzName );
+                }
+            } );
+        } catch ( URISyntaxException | IOException e ) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 一个URL下所有请求方法的Handler
+     */
+    private class Route {
+        private Pattern pattern;
+        private Map< RequestMethod, Handler > methodHandlers = new EnumMap<>( RequestMethod.class );
+        // 没有限定请求方法的Handler
+        private Handler anyMethodHandler;
+        // 405和OPTIONS响应中的Allow头，初始化时计算好
+        private String allow;
+
+        public Route( Pattern pattern ) {
+            this.pattern = pattern;
+        }
+
+        private void add( Handler handler ) {
+            if ( handler.methods.length == 0 ) {
+                if ( anyMethodHandler != null ) {
+                    throw new RuntimeException( "The mapping " + pattern + " is exists!!" );
+                }
+                anyMethodHandler = handler;
+                return;
+            }
+            for ( RequestMethod requestMethod : handler.methods ) {
+                if ( methodHandlers.containsKey( requestMethod ) ) {
+                    throw new RuntimeException( "The mapping " + requestMethod + " " + pattern + " is exists!!" );
+                }
+                methodHandlers.put( requestMethod, handler );
+            }
+        }
+
+        private void initAllow() {
+            Set< RequestMethod > allowed = EnumSet.noneOf( RequestMethod.class );
+            if ( anyMethodHandler != null ) {
+                allowed.addAll( EnumSet.range( RequestMethod.GET, RequestMethod.OPTIONS ) );
+            }
+            allowed.addAll( methodHandlers.keySet() );
+            if ( allowed.contains( RequestMethod.GET ) ) {
+                allowed.add( RequestMethod.HEAD );
+            }
+            allowed.add( RequestMethod.OPTIONS );
+            StringBuilder sb = new StringBuilder();
+            for ( RequestMethod requestMethod : allowed ) {
+                sb.append( sb.length() == 0 ? "" : ", " ).append( requestMethod.name() );
+            }
+            allow = sb.toString();
+        }
+
+        /**
+         * 按请求方法查找Handler，HEAD没有单独映射时使用GET的Handler，其次是不限方法的Handler
+         *
+         * @return 不支持该请求方法时返回null
+         */
+        private Handler getHandler( RequestMethod requestMethod ) {
+            if ( requestMethod == null ) {
+                return null;
+            }
+            Handler handler = methodHandlers.get( requestMethod );
+            if ( handler == null && requestMethod == RequestMethod.HEAD ) {
+                handler = methodHandlers.get( RequestMethod.GET );
+            }
+            // OPTIONS没有单独映射时由路由表回答，不交给通配的Handler
+            if ( handler == null && requestMethod != RequestMethod.TRACE && requestMethod != RequestMethod.OPTIONS ) {
+                handler = anyMethodHandler;
+            }
+            return handler;
+        }
+    }
+
+    private class Handler {
+        private Object controller;
+        private Method method;
+        private Pattern pattern;
+        private Map< String, Integer > paramIndexMapping;
+        // 该路由的并发限制器，关闭限流时为null
+        private ConcurrencyLimiter limiter;
+        // 接受的请求方法，为空表示全部
+        private RequestMethod[] methods;
+        // 是否有@RequestParam参数，没有时不解析multipart请求体，留给Controller自己读取
+        private boolean bindsParams;
+
+        public Handler( Pattern pattern, Object controller, Method method ) {
+            this.pattern = pattern;
+            this.controller = controller;
+            this.method = method;
+
+            paramIndexMapping = new HashMap<>();
+            putParamIndexMapping( method );
+        }
+
+        private boolean accepts( RequestMethod requestMethod ) {
+            return Arrays.asList( methods ).contains( requestMethod );
+        }
+
+        private void putParamIndexMapping( Method method ) {
+            //获取方法的形参列表
+            Class< ? >[] parameterTypes = method.getParameterTypes();
+
+            //保存赋值参数的位置
+            Object[] paramValues = new Object[ parameterTypes.length ];
+            //根据参数位置动态赋值
+            for ( int i = 0; i < parameterTypes.length; i++ ) {
+                Class< ? > type = parameterTypes[ i ];
+                if ( type == HttpServletRequest.class || type == HttpServletResponse.class ) {
+                    paramIndexMapping.put( type.getName(), i );
+                } else if ( type == String.class || type == MultipartFile.class ) {
+                    final Annotation[][] parameterAnnotations = method.getParameterAnnotations();
+                    final Annotation[] annotations = parameterAnnotations[ i ];
+                    for ( Annotation annotation : annotations ) {
+                        if ( annotation instanceof RequestParam ) {
+                            final String value = ( ( RequestParam ) annotation ).value();
+                            // 必须要求RequestParam注解不能有默认值，否则如果用户不自定义名字，就会有问题
+                            if ( !"".equals( value ) ) {
+                                paramIndexMapping.put( value, i );
+                                bindsParams = true;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package spring.framework.v3;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+/**
+ * HEAD请求借用GET的Handler时使用的响应包装
+ * 响应体只计数不输出，结束时用计数补上Content-Length，和GET的响应头保持一致
+ */
+class HeadResponse extends HttpServletResponseWrapper {
+    private final CountingStream stream = new CountingStream();
+    private PrintWriter writer;
+    private boolean contentLengthSet;
+
+    HeadResponse( HttpServletResponse response ) {
+        super( response );
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+        return stream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if ( writer == null ) {
+            writer = new PrintWriter( new OutputStreamWriter( stream, getCharacterEncoding() ) );
+        }
+        return writer;
+    }
+
+    @Override
+    public void setContentLength( int len ) {
+        contentLengthSet = true;
+        super.setContentLength( len );
+    }
+
+    @Override
+    public void setContentLengthLong( long len ) {
+        contentLengthSet = true;
+        super.setContentLengthLong( len );
+    }
+
+    @Override
+    public void setHeader( String name, String value ) {
+        if ( "Content-Length".equalsIgnoreCase( name ) ) {
+            contentLengthSet = true;
+        }
+        super.setHeader( name, value );
+    }
+
+    @Override
+    public void flushBuffer() {
+        // 不提交响应，否则无法再补Content-Length
+        if ( writer != null ) {
+            writer.flush();
+        }
+    }
+
+    @Override
+    public void resetBuffer() {
+        stream.count = 0;
+    }
+
+    /**
+     * Handler调用结束后补上Content-Length
+     */
+    void finish() {
+        if ( writer != null ) {
+            writer.flush();
+        }
+        if ( !contentLengthSet && !isCommitted() ) {
+            super.setContentLengthLong( stream.count );
+        }
+    }
+
+    private static class CountingStream extends ServletOutputStream {
+        private long count;
+
+        @Override
+        public void write( int b ) {
+            count++;
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len ) {
+            count += len;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener( WriteListener writeListener ) {
+            throw new UnsupportedOperationException( "HEAD responses have no body to stream" );
+        }
+    }
+}
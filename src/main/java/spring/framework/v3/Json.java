@@ -0,0 +1,47 @@
+package spring.framework.v3;
+
+/**
+ * 拼装JSON输出时用到的工具方法，框架没有引入JSON库，输出的结构都很简单
+ */
+final class Json {
+    private Json() {
+    }
+
+    /**
+     * 转义并加上双引号，null输出为JSON的null
+     */
+    static String quote( String value ) {
+        if ( value == null ) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder( value.length() + 2 );
+        sb.append( '"' );
+        for ( int i = 0; i < value.length(); i++ ) {
+            char c = value.charAt( i );
+            switch ( c ) {
+                case '"':
+                    sb.append( "\\\"" );
+                    break;
+                case '\\':
+                    sb.append( "\\\\" );
+                    break;
+                case '\n':
+                    sb.append( "\\n" );
+                    break;
+                case '\r':
+                    sb.append( "\\r" );
+                    break;
+                case '\t':
+                    sb.append( "\\t" );
+                    break;
+                default:
+                    if ( c < 0x20 ) {
+                        sb.append( String.format( "\\u%04x", ( int ) c ) );
+                    } else {
+                        sb.append( c );
+                    }
+            }
+        }
+        return sb.append( '"' ).toString();
+    }
+}
@@ -0,0 +1,685 @@
+package spring.framework.v3;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ReadListener;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * 不依赖servlet容器的一次请求/响应
+ * Controller的方法签名使用HttpServletRequest/HttpServletResponse，这里用动态代理把简单的字段
+ * 暴露成这两个接口，供启动预热和独立运行时调用Controller。
+ * 常用的方法都有实现；会话、RequestDispatcher等依赖容器的功能没有实现，调用时抛出UnsupportedOperationException，
+ * 并指出方法名，而不是静默返回null。
+ */
+class LocalExchange {
+    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    /**
+     * 自带缓冲的响应输出，由NioHttpServer实现；响应头在缓冲区第一次写出时才提交
+     */
+    interface ResponseSink {
+        boolean isCommitted();
+
+        /**
+         * 丢弃还没有提交的响应体
+         */
+        void resetBuffer();
+
+        /**
+         * 非阻塞输出时没有待发送的数据，可以继续写
+         */
+        boolean isReady();
+
+        /**
+         * 切换为非阻塞输出，注册后立即回调一次，之后每次待发送的数据写完时回调
+         */
+        void setWriteListener( Runnable onWritePossible );
+    }
+
+    private final String method;
+    private final String contextPath;
+    private final String path;
+    private final String query;
+    private final Map< String, String[] > parameters = new LinkedHashMap<>();
+    private final Map< String, List< String > > requestHeaders = new TreeMap<>( String.CASE_INSENSITIVE_ORDER );
+    private final Map< String, Object > attributes = new HashMap<>();
+    private InputStream body = new ByteArrayInputStream( new byte[ 0 ] );
+    private String requestCharacterEncoding;
+    // 预热时没有真实连接，按本机回环地址处理
+    private InetSocketAddress remoteAddress = new InetSocketAddress( "127.0.0.1", 0 );
+    private InetSocketAddress localAddress = new InetSocketAddress( "127.0.0.1", 0 );
+
+    private int status = HttpServletResponse.SC_OK;
+    private final Map< String, List< String > > responseHeaders = new TreeMap<>( String.CASE_INSENSITIVE_ORDER );
+    private final OutputStream sink;
+    private String responseCharacterEncoding = "UTF-8";
+    private SinkOutputStream outputStream;
+    private PrintWriter writer;
+    private int bufferSize = 8192;
+    private Locale responseLocale = Locale.getDefault();
+    // sink不是ResponseSink时，flush过就算已提交
+    private boolean committed;
+    // 为true时输出流的flush不传递给sink，用于把Writer中的字符写入sink而不提交响应
+    private boolean draining;
+
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+
+    /**
+     * @param method      请求方法
+     * @param contextPath 应用前缀，没有时为空字符串
+     * @param target      请求路径，可以带查询串，例如 /spring/demo/query?name=a
+     * @param sink        响应体写到这里
+     */
+    LocalExchange( String method, String contextPath, String target, OutputStream sink ) {
+        this.method = method;
+        this.contextPath = contextPath;
+        int question = target.indexOf( '?' );
+        this.path = question < 0 ? target : target.substring( 0, question );
+        this.query = question < 0 ? null : target.substring( question + 1 );
+        this.sink = sink;
+        if ( query != null ) {
+            parseParameters( query );
+        }
+    }
+
+    /**
+     * 解析application/x-www-form-urlencoded格式的参数，追加到参数表中
+     */
+    void parseParameters( String encoded ) {
+        Parameters.parse( parameters, encoded );
+    }
+
+    void addRequestHeader( String name, String value ) {
+        requestHeaders.computeIfAbsent( name, k -> new ArrayList<>() ).add( value );
+    }
+
+    void setBody( InputStream body ) {
+        this.body = body;
+    }
+
+    void setAddresses( InetSocketAddress remoteAddress, InetSocketAddress localAddress ) {
+        this.remoteAddress = remoteAddress;
+        this.localAddress = localAddress;
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    int getStatus() {
+        return status;
+    }
+
+    Map< String, List< String > > getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    /**
+     * 把Writer中缓冲的内容写到sink
+     */
+    void flush() throws IOException {
+        if ( writer != null ) {
+            writer.flush();
+        }
+        sink.flush();
+        committed = true;
+    }
+
+    /**
+     * 把Writer中缓冲的字符编码后写入sink，但不flush sink，响应是否提交由sink自己决定
+     */
+    void flushWriter() {
+        if ( writer != null ) {
+            draining = true;
+            try {
+                writer.flush();
+            } finally {
+                draining = false;
+            }
+        }
+    }
+
+    HttpServletRequest getRequest() {
+        if ( request == null ) {
+            request = ( HttpServletRequest ) Proxy.newProxyInstance( getClass().getClassLoader(),
+                    new Class< ? >[] { HttpServletRequest.class }, ( proxy, m, args ) -> onRequest( proxy, m, args ) );
+        }
+        return request;
+    }
+
+    HttpServletResponse getResponse() {
+        if ( response == null ) {
+            response = ( HttpServletResponse ) Proxy.newProxyInstance( getClass().getClassLoader(),
+                    new Class< ? >[] { HttpServletResponse.class }, ( proxy, m, args ) -> onResponse( proxy, m, args ) );
+        }
+        return response;
+    }
+
+    private Object onRequest( Object proxy, Method m, Object[] args ) throws IOException {
+        switch ( m.getName() ) {
+            case "getMethod":
+                return method;
+            case "getRequestURI":
+                return contextPath + path;
+            case "getRequestURL":
+                return new StringBuffer( "http://" + getHeader( requestHeaders, "Host", "localhost" ) + contextPath + path );
+            case "getContextPath":
+                return contextPath;
+            case "getServletPath":
+                return "";
+            case "getPathInfo":
+                return path;
+            case "getQueryString":
+                return query;
+            case "getProtocol":
+                return "HTTP/1.1";
+            case "getScheme":
+                return "http";
+            case "getParameter": {
+                String[] values = parameters.get( ( String ) args[ 0 ] );
+                return values == null ? null : values[ 0 ];
+            }
+            case "getParameterValues":
+                return parameters.get( ( String ) args[ 0 ] );
+            case "getParameterMap":
+                return Collections.unmodifiableMap( parameters );
+            case "getParameterNames":
+                return Collections.enumeration( parameters.keySet() );
+            case "getHeader":
+                return getHeader( requestHeaders, ( String ) args[ 0 ], null );
+            case "getHeaders": {
+                List< String > values = requestHeaders.get( ( String ) args[ 0 ] );
+                return Collections.enumeration( values == null ? Collections.< String >emptyList() : values );
+            }
+            case "getHeaderNames":
+                return Collections.enumeration( requestHeaders.keySet() );
+            case "getIntHeader": {
+                String value = getHeader( requestHeaders, ( String ) args[ 0 ], null );
+                return value == null ? -1 : Integer.parseInt( value.trim() );
+            }
+            case "getDateHeader": {
+                String value = getHeader( requestHeaders, ( String ) args[ 0 ], null );
+                return value == null ? -1L : parseDate( value );
+            }
+            case "getContentType":
+                return getHeader( requestHeaders, "Content-Type", null );
+            case "getContentLength":
+            case "getContentLengthLong": {
+                String value = getHeader( requestHeaders, "Content-Length", null );
+                long length = value == null ? -1L : Long.parseLong( value.trim() );
+                return "getContentLength".equals( m.getName() ) ? ( Object ) ( int ) length : ( Object ) length;
+            }
+            case "getCharacterEncoding":
+                return requestCharacterEncoding;
+            case "setCharacterEncoding":
+                requestCharacterEncoding = ( String ) args[ 0 ];
+                return null;
+            case "getInputStream":
+                return new BodyInputStream( body );
+            case "getReader":
+                return new BufferedReader( new InputStreamReader( body,
+                        requestCharacterEncoding == null ? "UTF-8" : requestCharacterEncoding ) );
+            case "getAttribute":
+                return attributes.get( args[ 0 ] );
+            case "setAttribute":
+                attributes.put( ( String ) args[ 0 ], args[ 1 ] );
+                return null;
+            case "removeAttribute":
+                attributes.remove( args[ 0 ] );
+                return null;
+            case "getAttributeNames":
+                return Collections.enumeration( attributes.keySet() );
+            case "getLocale":
+                return Locale.getDefault();
+            case "getLocales":
+                return Collections.enumeration( Collections.singletonList( Locale.getDefault() ) );
+            case "getServerName": {
+                String host = getHeader( requestHeaders, "Host", null );
+                if ( host == null ) {
+                    return localAddress.getHostString();
+                }
+                int colon = host.lastIndexOf( ':' );
+                return colon > host.lastIndexOf( ']' ) ? host.substring( 0, colon ) : host;
+            }
+            case "getServerPort": {
+                String host = getHeader( requestHeaders, "Host", null );
+                if ( host == null ) {
+                    return localAddress.getPort();
+                }
+                int colon = host.lastIndexOf( ':' );
+                return colon > host.lastIndexOf( ']' ) ? Integer.parseInt( host.substring( colon + 1 ).trim() ) : 80;
+            }
+            case "getRemoteAddr":
+                return remoteAddress.getAddress() == null ? remoteAddress.getHostString() : remoteAddress.getAddress().getHostAddress();
+            case "getRemoteHost":
+                return remoteAddress.getHostString();
+            case "getRemotePort":
+                return remoteAddress.getPort();
+            case "getLocalName":
+                return localAddress.getHostString();
+            case "getLocalAddr":
+                return localAddress.getAddress() == null ? localAddress.getHostString() : localAddress.getAddress().getHostAddress();
+            case "getLocalPort":
+                return localAddress.getPort();
+            case "isSecure":
+                return false;
+            case "getCookies":
+                return parseCookies();
+            case "getDispatcherType":
+                return DispatcherType.REQUEST;
+            // 没有认证和会话，按“未登录、没有会话”回答
+            case "getAuthType":
+            case "getRemoteUser":
+            case "getUserPrincipal":
+            case "getRequestedSessionId":
+            case "getPathTranslated":
+                return null;
+            case "isUserInRole":
+            case "isRequestedSessionIdValid":
+            case "isRequestedSessionIdFromCookie":
+            case "isRequestedSessionIdFromURL":
+            case "isRequestedSessionIdFromUrl":
+                return false;
+            case "getSession":
+                if ( args != null && args.length == 1 && !( Boolean ) args[ 0 ] ) {
+                    return null;
+                }
+                throw new UnsupportedOperationException( "HttpServletRequest.getSession is not supported without a servlet container" );
+            case "isAsyncSupported":
+            case "isAsyncStarted":
+                return false;
+            case "startAsync":
+            case "getAsyncContext":
+                throw new IllegalStateException( "Async processing is not supported without a servlet container" );
+            case "newPushBuilder":
+                return null;
+            case "getTrailerFields":
+                return Collections.emptyMap();
+            case "isTrailerFieldsReady":
+                return true;
+            default:
+                return onObjectMethod( proxy, m, args, "LocalRequest " + method + " " + path );
+        }
+    }
+
+    private Object onResponse( Object proxy, Method m, Object[] args ) throws IOException {
+        switch ( m.getName() ) {
+            case "setStatus":
+                status = ( Integer ) args[ 0 ];
+                return null;
+            case "getStatus":
+                return status;
+            case "sendError":
+                resetBuffer();
+                status = ( Integer ) args[ 0 ];
+                if ( args.length > 1 && args[ 1 ] != null ) {
+                    getWriterInternal().write( ( String ) args[ 1 ] );
+                }
+                return null;
+            case "sendRedirect":
+                resetBuffer();
+                status = HttpServletResponse.SC_FOUND;
+                setHeader( "Location", ( String ) args[ 0 ] );
+                return null;
+            case "addCookie":
+                addHeader( "Set-Cookie", formatCookie( ( Cookie ) args[ 0 ] ) );
+                return null;
+            // 没有会话，URL不需要改写
+            case "encodeURL":
+            case "encodeUrl":
+            case "encodeRedirectURL":
+            case "encodeRedirectUrl":
+                return args[ 0 ];
+            case "setHeader":
+                setHeader( ( String ) args[ 0 ], ( String ) args[ 1 ] );
+                return null;
+            case "addHeader":
+                addHeader( ( String ) args[ 0 ], ( String ) args[ 1 ] );
+                return null;
+            case "setIntHeader":
+                setHeader( ( String ) args[ 0 ], String.valueOf( args[ 1 ] ) );
+                return null;
+            case "addIntHeader":
+                addHeader( ( String ) args[ 0 ], String.valueOf( args[ 1 ] ) );
+                return null;
+            case "setDateHeader":
+                setHeader( ( String ) args[ 0 ], formatDate( ( Long ) args[ 1 ] ) );
+                return null;
+            case "addDateHeader":
+                addHeader( ( String ) args[ 0 ], formatDate( ( Long ) args[ 1 ] ) );
+                return null;
+            case "containsHeader":
+                return responseHeaders.containsKey( ( String ) args[ 0 ] );
+            case "getHeader":
+                return getHeader( responseHeaders, ( String ) args[ 0 ], null );
+            case "getHeaders": {
+                List< String > values = responseHeaders.get( ( String ) args[ 0 ] );
+                return values == null ? Collections.< String >emptyList() : new ArrayList<>( values );
+            }
+            case "getHeaderNames":
+                return new ArrayList<>( responseHeaders.keySet() );
+            case "setContentType":
+                setContentType( ( String ) args[ 0 ] );
+                return null;
+            case "getContentType":
+                return getHeader( responseHeaders, "Content-Type", null );
+            case "setCharacterEncoding":
+                if ( writer == null ) {
+                    responseCharacterEncoding = ( String ) args[ 0 ];
+                }
+                return null;
+            case "getCharacterEncoding":
+                return responseCharacterEncoding;
+            case "setContentLength":
+            case "setContentLengthLong":
+                setHeader( "Content-Length", String.valueOf( args[ 0 ] ) );
+                return null;
+            case "getOutputStream":
+                if ( writer != null ) {
+                    throw new IllegalStateException( "getWriter() has already been called" );
+                }
+                return getOutputStreamInternal();
+            case "getWriter":
+                if ( writer == null && outputStream != null ) {
+                    throw new IllegalStateException( "getOutputStream() has already been called" );
+                }
+                return getWriterInternal();
+            case "flushBuffer":
+                flush();
+                return null;
+            case "isCommitted":
+                return isCommitted();
+            case "setBufferSize":
+                if ( isCommitted() ) {
+                    throw new IllegalStateException( "The response has already been committed" );
+                }
+                bufferSize = ( Integer ) args[ 0 ];
+                return null;
+            case "getBufferSize":
+                return bufferSize;
+            case "resetBuffer":
+                resetBuffer();
+                return null;
+            case "reset":
+                resetBuffer();
+                status = HttpServletResponse.SC_OK;
+                responseHeaders.clear();
+                // reset之后可以重新选择getWriter或getOutputStream
+                writer = null;
+                outputStream = null;
+                return null;
+            case "setLocale":
+                responseLocale = ( Locale ) args[ 0 ];
+                return null;
+            case "getLocale":
+                return responseLocale;
+            default:
+                return onObjectMethod( proxy, m, args, "LocalResponse " + status );
+        }
+    }
+
+    /**
+     * equals/hashCode/toString按代理对象本身处理，其余没有实现的方法直接报错，
+     * 避免Controller拿到null之后在离调用处很远的地方才失败
+     */
+    private Object onObjectMethod( Object proxy, Method m, Object[] args, String description ) {
+        switch ( m.getName() ) {
+            case "equals":
+                return proxy == args[ 0 ];
+            case "hashCode":
+                return System.identityHashCode( proxy );
+            case "toString":
+                return description;
+            default:
+                throw new UnsupportedOperationException( m.getDeclaringClass().getSimpleName() + "." + m.getName()
+                        + " is not supported without a servlet container" );
+        }
+    }
+
+    private boolean isCommitted() {
+        return sink instanceof ResponseSink ? ( ( ResponseSink ) sink ).isCommitted() : committed;
+    }
+
+    /**
+     * 丢弃还没有提交的响应体，Writer中的字符先写入sink再一起丢弃
+     */
+    private void resetBuffer() {
+        if ( isCommitted() ) {
+            throw new IllegalStateException( "The response has already been committed" );
+        }
+        flushWriter();
+        if ( sink instanceof ResponseSink ) {
+            ( ( ResponseSink ) sink ).resetBuffer();
+        }
+    }
+
+    private Cookie[] parseCookies() {
+        List< String > values = requestHeaders.get( "Cookie" );
+        if ( values == null ) {
+            return null;
+        }
+        List< Cookie > cookies = new ArrayList<>();
+        for ( String value : values ) {
+            for ( String pair : value.split( ";" ) ) {
+                int eq = pair.indexOf( '=' );
+                if ( eq <= 0 ) {
+                    continue;
+                }
+                String cookieValue = pair.substring( eq + 1 ).trim();
+                if ( cookieValue.length() > 1 && cookieValue.startsWith( "\"" ) && cookieValue.endsWith( "\"" ) ) {
+                    cookieValue = cookieValue.substring( 1, cookieValue.length() - 1 );
+                }
+                try {
+                    cookies.add( new Cookie( pair.substring( 0, eq ).trim(), cookieValue ) );
+                } catch ( IllegalArgumentException e ) {
+                    // 名字不合法的cookie忽略
+                }
+            }
+        }
+        return cookies.isEmpty() ? null : cookies.toArray( new Cookie[ 0 ] );
+    }
+
+    private static String formatCookie( Cookie cookie ) {
+        StringBuilder header = new StringBuilder( cookie.getName() ).append( '=' )
+                .append( cookie.getValue() == null ? "" : cookie.getValue() );
+        if ( cookie.getPath() != null ) {
+            header.append( "; Path=" ).append( cookie.getPath() );
+        }
+        if ( cookie.getDomain() != null ) {
+            header.append( "; Domain=" ).append( cookie.getDomain() );
+        }
+        if ( cookie.getMaxAge() >= 0 ) {
+            header.append( "; Max-Age=" ).append( cookie.getMaxAge() );
+            header.append( "; Expires=" ).append( formatDate( System.currentTimeMillis() + cookie.getMaxAge() * 1000L ) );
+        }
+        if ( cookie.getSecure() ) {
+            header.append( "; Secure" );
+        }
+        if ( cookie.isHttpOnly() ) {
+            header.append( "; HttpOnly" );
+        }
+        return header.toString();
+    }
+
+    private void setHeader( String name, String value ) {
+        List< String > values = new ArrayList<>( 1 );
+        values.add( value );
+        responseHeaders.put( name, values );
+    }
+
+    private void addHeader( String name, String value ) {
+        responseHeaders.computeIfAbsent( name, k -> new ArrayList<>() ).add( value );
+    }
+
+    private void setContentType( String contentType ) {
+        int charset = contentType.toLowerCase().indexOf( "charset=" );
+        if ( charset >= 0 && writer == null ) {
+            responseCharacterEncoding = contentType.substring( charset + "charset=".length() ).trim();
+        }
+        setHeader( "Content-Type", contentType );
+    }
+
+    private ServletOutputStream getOutputStreamInternal() {
+        if ( outputStream == null ) {
+            outputStream = new SinkOutputStream();
+        }
+        return outputStream;
+    }
+
+    private PrintWriter getWriterInternal() throws UnsupportedEncodingException {
+        if ( writer == null ) {
+            writer = new PrintWriter( new OutputStreamWriter( getOutputStreamInternal(), responseCharacterEncoding ) );
+        }
+        return writer;
+    }
+
+    private static String getHeader( Map< String, List< String > > headers, String name, String defaultValue ) {
+        List< String > values = headers.get( name );
+        return values == null || values.isEmpty() ? defaultValue : values.get( 0 );
+    }
+
+    private static String formatDate( long millis ) {
+        SimpleDateFormat format = new SimpleDateFormat( HTTP_DATE_FORMAT, Locale.US );
+        format.setTimeZone( TimeZone.getTimeZone( "GMT" ) );
+        return format.format( new Date( millis ) );
+    }
+
+    private static long parseDate( String value ) {
+        SimpleDateFormat format = new SimpleDateFormat( HTTP_DATE_FORMAT, Locale.US );
+        format.setTimeZone( TimeZone.getTimeZone( "GMT" ) );
+        try {
+            return format.parse( value ).getTime();
+        } catch ( java.text.ParseException e ) {
+            throw new IllegalArgumentException( "Invalid date header: " + value );
+        }
+    }
+
+    /**
+     * 直接写入sink，不另外缓冲；sink能接收文件通道时大文件交给它传输
+     */
+    private class SinkOutputStream extends ServletOutputStream implements ResourceHandler.FileTransferTarget {
+        @Override
+        public void write( int b ) throws IOException {
+            sink.write( b );
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len ) throws IOException {
+            sink.write( b, off, len );
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if ( !draining ) {
+                sink.flush();
+                committed = true;
+            }
+        }
+
+        @Override
+        public void transferFrom( FileChannel file, long position, long count ) throws IOException {
+            if ( sink instanceof ResourceHandler.FileTransferTarget ) {
+                ( ( ResourceHandler.FileTransferTarget ) sink ).transferFrom( file, position, count );
+                return;
+            }
+            WritableByteChannel target = Channels.newChannel( sink );
+            long end = position + count;
+            while ( position < end ) {
+                long transferred = file.transferTo( position, end - position, target );
+                if ( transferred <= 0 ) {
+                    break;
+                }
+                position += transferred;
+            }
+        }
+
+        @Override
+        public boolean isReady() {
+            return !( sink instanceof ResponseSink ) || ( ( ResponseSink ) sink ).isReady();
+        }
+
+        @Override
+        public void setWriteListener( WriteListener writeListener ) {
+            if ( !( sink instanceof ResponseSink ) ) {
+                throw new UnsupportedOperationException( "Non-blocking output is not supported" );
+            }
+            ( ( ResponseSink ) sink ).setWriteListener( () -> {
+                try {
+                    writeListener.onWritePossible();
+                } catch ( IOException e ) {
+                    writeListener.onError( e );
+                }
+            } );
+        }
+    }
+
+    private static class BodyInputStream extends ServletInputStream {
+        private final InputStream in;
+        private boolean finished;
+
+        BodyInputStream( InputStream in ) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            finished = b < 0;
+            return b;
+        }
+
+        @Override
+        public int read( byte[] b, int off, int len ) throws IOException {
+            int count = in.read( b, off, len );
+            finished = count < 0;
+            return count;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return finished;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setReadListener( ReadListener readListener ) {
+            throw new UnsupportedOperationException( "Non-blocking input is not supported" );
+        }
+    }
+}
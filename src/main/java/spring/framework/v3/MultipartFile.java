@@ -0,0 +1,238 @@
+package spring.framework.v3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * multipart请求中的一个part，可以通过@RequestParam绑定到Handler的参数上
+ * 小的part保存在池化的缓冲区中，超过阈值后整体转存到临时文件，内容在读取时才打开。
+ * 只在Handler调用期间有效，调用结束后缓冲区被回收、临时文件被删除，需要保留的内容应当transferTo到别处。
+ */
+public class MultipartFile {
+    private final String name;
+    private final String originalFilename;
+    private final String contentType;
+
+    private final BufferPool bufferPool;
+    private final long memoryThreshold;
+    private final MultipartParser.MemoryBudget memoryBudget;
+    private final long maxSize;
+    private final Path tempDir;
+
+    // 写满的缓冲区，最后一个可能没写满
+    private final List< byte[] > chunks = new ArrayList<>();
+    private int lastChunkFill;
+    private long size;
+    // 转存到磁盘后的文件和写入通道
+    private Path file;
+    private FileChannel channel;
+
+    MultipartFile( String name, String originalFilename, String contentType,
+                   BufferPool bufferPool, long memoryThreshold, MultipartParser.MemoryBudget memoryBudget,
+                   long maxSize, Path tempDir ) {
+        this.name = name;
+        this.originalFilename = originalFilename;
+        this.contentType = contentType;
+        this.bufferPool = bufferPool;
+        this.memoryThreshold = memoryThreshold;
+        this.memoryBudget = memoryBudget;
+        this.maxSize = maxSize;
+        this.tempDir = tempDir;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 客户端提交的文件名，普通表单字段为null
+     */
+    public String getOriginalFilename() {
+        return originalFilename;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public boolean isInMemory() {
+        return file == null;
+    }
+
+    /**
+     * 每次调用都返回一个从头开始的新流
+     */
+    public InputStream getInputStream() throws IOException {
+        if ( file != null ) {
+            return Files.newInputStream( file );
+        }
+        return new ChunkInputStream();
+    }
+
+    public byte[] getBytes() throws IOException {
+        if ( size > Integer.MAX_VALUE ) {
+            throw new IOException( "Part " + name + " is too large to be read into a byte array" );
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream( ( int ) size );
+        try ( InputStream in = getInputStream() ) {
+            byte[] buffer = new byte[ 8192 ];
+            int count;
+            while ( ( count = in.read( buffer ) ) > 0 ) {
+                out.write( buffer, 0, count );
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 把内容写到目标文件，磁盘上的part通过FileChannel.transferTo复制
+     */
+    public void transferTo( Path target ) throws IOException {
+        try ( FileChannel out = FileChannel.open( target, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING ) ) {
+            if ( file != null ) {
+                try ( FileChannel in = FileChannel.open( file, StandardOpenOption.READ ) ) {
+                    long position = 0;
+                    while ( position < size ) {
+                        position += in.transferTo( position, size - position, out );
+                    }
+                }
+                return;
+            }
+            for ( int i = 0; i < chunks.size(); i++ ) {
+                writeFully( out, ByteBuffer.wrap( chunks.get( i ), 0, chunkFill( i ) ) );
+            }
+        }
+    }
+
+    void write( byte[] bytes, int offset, int length ) throws IOException {
+        if ( size + length > maxSize ) {
+            throw new MultipartSizeException( "Part " + name + " exceeds the limit of " + maxSize + " bytes" );
+        }
+        size += length;
+        // 单个part超过阈值，或者整个请求的内存额度不够再借缓冲区，都转存到磁盘
+        if ( channel == null && ( size > memoryThreshold || !memoryBudget.reserve( bytesToBorrow( length ) ) ) ) {
+            spill();
+        }
+        if ( channel != null ) {
+            writeFully( channel, ByteBuffer.wrap( bytes, offset, length ) );
+            return;
+        }
+        while ( length > 0 ) {
+            if ( chunks.isEmpty() || lastChunkFill == bufferPool.getBufferSize() ) {
+                chunks.add( bufferPool.borrow() );
+                lastChunkFill = 0;
+            }
+            int count = Math.min( length, bufferPool.getBufferSize() - lastChunkFill );
+            System.arraycopy( bytes, offset, chunks.get( chunks.size() - 1 ), lastChunkFill, count );
+            lastChunkFill += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * part数据读取完毕，关闭临时文件的写入通道
+     */
+    void finish() throws IOException {
+        if ( channel != null ) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * 归还缓冲区并删除临时文件
+     */
+    void release() {
+        for ( byte[] chunk : chunks ) {
+            bufferPool.release( chunk );
+        }
+        chunks.clear();
+        try {
+            finish();
+            if ( file != null ) {
+                Files.deleteIfExists( file );
+            }
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 超过内存阈值，把已有的缓冲区写入临时文件后归还
+     */
+    private void spill() throws IOException {
+        file = tempDir == null ? Files.createTempFile( "upload-", ".part" ) : Files.createTempFile( tempDir, "upload-", ".part" );
+        channel = FileChannel.open( file, StandardOpenOption.WRITE );
+        for ( int i = 0; i < chunks.size(); i++ ) {
+            writeFully( channel, ByteBuffer.wrap( chunks.get( i ), 0, chunkFill( i ) ) );
+            bufferPool.release( chunks.get( i ) );
+        }
+        memoryBudget.free( ( long ) chunks.size() * bufferPool.getBufferSize() );
+        chunks.clear();
+    }
+
+    /**
+     * 写入length字节还需要借用的缓冲区总大小，内存额度按整块缓冲区计算
+     */
+    private long bytesToBorrow( int length ) {
+        int bufferSize = bufferPool.getBufferSize();
+        int free = chunks.isEmpty() ? 0 : bufferSize - lastChunkFill;
+        if ( length <= free ) {
+            return 0;
+        }
+        return ( ( long ) length - free + bufferSize - 1 ) / bufferSize * bufferSize;
+    }
+
+    private int chunkFill( int index ) {
+        return index == chunks.size() - 1 ? lastChunkFill : bufferPool.getBufferSize();
+    }
+
+    private static void writeFully( FileChannel channel, ByteBuffer buffer ) throws IOException {
+        while ( buffer.hasRemaining() ) {
+            channel.write( buffer );
+        }
+    }
+
+    /**
+     * 依次读取内存中的各个缓冲区
+     */
+    private class ChunkInputStream extends InputStream {
+        private int chunk;
+        private int position;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[ 1 ];
+            return read( one, 0, 1 ) < 0 ? -1 : one[ 0 ] & 0xff;
+        }
+
+        @Override
+        public int read( byte[] b, int off, int len ) {
+            while ( chunk < chunks.size() && position == chunkFill( chunk ) ) {
+                chunk++;
+                position = 0;
+            }
+            if ( chunk >= chunks.size() ) {
+                return -1;
+            }
+            int count = Math.min( len, chunkFill( chunk ) - position );
+            System.arraycopy( chunks.get( chunk ), position, b, off, count );
+            position += count;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package spring.framework.v3;
+
+import java.io.IOException;
+
+/**
+ * multipart请求体格式错误（缺少boundary、被截断、头部过长等），DispatcherCore据此返回400
+ */
+class MultipartParseException extends IOException {
+
+    MultipartParseException( String message ) {
+        super( message );
+    }
+}
@@ -0,0 +1,313 @@
+package spring.framework.v3;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * multipart/form-data解析
+ * 直接从请求的InputStream中边读边切分，不经过getParameterMap，任何时候内存中只有一个读缓冲区
+ * 加上各part不超过阈值的部分，超过阈值的part由MultipartFile转存到临时文件。
+ * 一个请求所有part借用的缓冲区还受multipart.maxInMemorySize限制，超出后后续的数据直接写磁盘，
+ * 大量小part也不能把内存占满。
+ */
+class MultipartParser {
+    private static final int MAX_HEADER_LINE = 8192;
+    private static final int MAX_PART_HEADERS = 64;
+
+    private final BufferPool bufferPool;
+    private final long maxRequestSize;
+    private final long maxPartSize;
+    private final long maxFieldSize;
+    private final long memoryThreshold;
+    private final long maxInMemorySize;
+    private final int maxParts;
+    private final Path tempDir;
+
+    MultipartParser( Properties config ) {
+        this.maxRequestSize = Long.parseLong( config.getProperty( "multipart.maxRequestSize", "52428800" ) );
+        this.maxPartSize = Long.parseLong( config.getProperty( "multipart.maxPartSize", "20971520" ) );
+        this.memoryThreshold = Long.parseLong( config.getProperty( "multipart.memoryThreshold", "65536" ) );
+        this.maxFieldSize = Long.parseLong( config.getProperty( "multipart.maxFieldSize", String.valueOf( memoryThreshold ) ) );
+        this.maxInMemorySize = Long.parseLong( config.getProperty( "multipart.maxInMemorySize", "262144" ) );
+        this.maxParts = Integer.parseInt( config.getProperty( "multipart.maxParts", "100" ) );
+        this.bufferPool = new BufferPool( Integer.parseInt( config.getProperty( "multipart.bufferPoolSize", "256" ) ),
+                Integer.parseInt( config.getProperty( "multipart.bufferSize", "8192" ) ) );
+        String dir = config.getProperty( "multipart.tempDir", "" ).trim();
+        this.tempDir = "".equals( dir ) ? null : Paths.get( dir );
+    }
+
+    static boolean isMultipart( HttpServletRequest req ) {
+        String contentType = req.getContentType();
+        return contentType != null && contentType.toLowerCase().startsWith( "multipart/form-data" );
+    }
+
+    /**
+     * 解析整个请求体，失败时已经创建的part会被清理
+     *
+     * @throws MultipartSizeException  超过大小或者part数量限制
+     * @throws MultipartParseException 请求体格式错误
+     */
+    MultipartRequest parse( HttpServletRequest req ) throws IOException {
+        if ( req.getContentLengthLong() > maxRequestSize ) {
+            throw new MultipartSizeException( "Request exceeds the limit of " + maxRequestSize + " bytes" );
+        }
+        String boundary = getBoundary( req.getContentType() );
+        if ( boundary == null ) {
+            throw new MultipartParseException( "Missing multipart boundary" );
+        }
+        String charset = req.getCharacterEncoding() == null ? "UTF-8" : req.getCharacterEncoding();
+
+        MultipartRequest result = new MultipartRequest();
+        MemoryBudget memoryBudget = new MemoryBudget( maxInMemorySize );
+        byte[] buffer = bufferPool.borrow();
+        try {
+            Scanner scanner = new Scanner( req.getInputStream(), buffer );
+            byte[] delimiter = ( "\r\n--" + boundary ).getBytes( StandardCharsets.ISO_8859_1 );
+            // 第一个分隔符前面没有CRLF，跳过前导内容时补上
+            scanner.skipPreamble( delimiter );
+            while ( true ) {
+                // 分隔符后面是CRLF表示还有part，是--表示结束
+                String rest = scanner.readLine();
+                if ( rest.startsWith( "--" ) ) {
+                    break;
+                }
+                if ( result.parts.size() >= maxParts ) {
+                    throw new MultipartSizeException( "Request exceeds the limit of " + maxParts + " parts" );
+                }
+                Map< String, String > headers = new LinkedHashMap<>();
+                String line;
+                while ( !"".equals( line = scanner.readLine() ) ) {
+                    if ( headers.size() >= MAX_PART_HEADERS ) {
+                        throw new MultipartParseException( "Too many multipart headers" );
+                    }
+                    int colon = line.indexOf( ':' );
+                    if ( colon > 0 ) {
+                        headers.put( line.substring( 0, colon ).trim().toLowerCase(), line.substring( colon + 1 ).trim() );
+                    }
+                }
+                String disposition = headers.get( "content-disposition" );
+                String name = getDispositionParameter( disposition, "name" );
+                String filename = getDispositionParameter( disposition, "filename" );
+
+                // 普通表单字段最后要整个转成字符串，边读边按maxFieldSize限制，不等读完再检查
+                MultipartFile part = new MultipartFile( name, filename, headers.get( "content-type" ),
+                        bufferPool, memoryThreshold, memoryBudget, filename == null ? maxFieldSize : maxPartSize, tempDir );
+                result.parts.add( part );
+                scanner.copyUntil( delimiter, part );
+                part.finish();
+                if ( name == null ) {
+                    continue;
+                }
+                if ( filename == null ) {
+                    // 普通表单字段转为字符串，和查询参数一起绑定
+                    Parameters.add( result.fields, name, new String( part.getBytes(), charset ) );
+                } else {
+                    result.files.putIfAbsent( name, part );
+                }
+            }
+            return result;
+        } catch ( IOException | RuntimeException e ) {
+            result.release();
+            throw e;
+        } finally {
+            bufferPool.release( buffer );
+        }
+    }
+
+    /**
+     * 一个请求内所有part共用的内存额度，只在解析线程上使用
+     */
+    static class MemoryBudget {
+        private long remaining;
+
+        MemoryBudget( long size ) {
+            this.remaining = size;
+        }
+
+        /**
+         * @return 额度不足时返回false，调用方应当改写磁盘
+         */
+        boolean reserve( long bytes ) {
+            if ( bytes > remaining ) {
+                return false;
+            }
+            remaining -= bytes;
+            return true;
+        }
+
+        void free( long bytes ) {
+            remaining += bytes;
+        }
+    }
+
+    private String getBoundary( String contentType ) {
+        for ( String parameter : contentType.split( ";" ) ) {
+            parameter = parameter.trim();
+            if ( parameter.toLowerCase().startsWith( "boundary=" ) ) {
+                String boundary = parameter.substring( "boundary=".length() );
+                return boundary.startsWith( "\"" ) && boundary.endsWith( "\"" ) && boundary.length() > 1
+                        ? boundary.substring( 1, boundary.length() - 1 ) : boundary;
+            }
+        }
+        return null;
+    }
+
+    private String getDispositionParameter( String disposition, String parameterName ) {
+        if ( disposition == null ) {
+            return null;
+        }
+        for ( String parameter : disposition.split( ";" ) ) {
+            parameter = parameter.trim();
+            int eq = parameter.indexOf( '=' );
+            if ( eq > 0 && parameter.substring( 0, eq ).trim().equalsIgnoreCase( parameterName ) ) {
+                String value = parameter.substring( eq + 1 ).trim();
+                if ( value.startsWith( "\"" ) && value.endsWith( "\"" ) && value.length() > 1 ) {
+                    value = value.substring( 1, value.length() - 1 );
+                }
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 一次multipart请求解析出的字段和文件
+     */
+    static class MultipartRequest {
+        private final List< MultipartFile > parts = new ArrayList<>();
+        private final Map< String, MultipartFile > files = new LinkedHashMap<>();
+        private final Map< String, String[] > fields = new LinkedHashMap<>();
+
+        MultipartFile getFile( String name ) {
+            return files.get( name );
+        }
+
+        Map< String, String[] > getFields() {
+            return fields;
+        }
+
+        /**
+         * Handler调用结束后回收缓冲区、删除临时文件
+         */
+        void release() {
+            for ( MultipartFile part : parts ) {
+                part.release();
+            }
+        }
+    }
+
+    /**
+     * 在固定大小的缓冲区上查找分隔符，读到的数据不会整体保存在内存中
+     */
+    private class Scanner {
+        private final InputStream in;
+        private final byte[] buffer;
+        private int position;
+        private int limit;
+        private long total;
+
+        Scanner( InputStream in, byte[] buffer ) {
+            this.in = in;
+            this.buffer = buffer;
+        }
+
+        void skipPreamble( byte[] delimiter ) throws IOException {
+            buffer[ 0 ] = '\r';
+            buffer[ 1 ] = '\n';
+            limit = 2;
+            copyUntil( delimiter, null );
+        }
+
+        /**
+         * 把分隔符之前的数据写入part（part为null时丢弃），并越过分隔符
+         */
+        void copyUntil( byte[] delimiter, MultipartFile part ) throws IOException {
+            while ( true ) {
+                int index = indexOf( delimiter );
+                if ( index >= 0 ) {
+                    write( part, index - position );
+                    position = index + delimiter.length;
+                    return;
+                }
+                // 末尾可能是分隔符的前半段，先保留不写
+                int safe = limit - delimiter.length + 1;
+                if ( safe > position ) {
+                    write( part, safe - position );
+                    position = safe;
+                }
+                if ( !fill() ) {
+                    throw new MultipartParseException( "Unexpected end of multipart body" );
+                }
+            }
+        }
+
+        String readLine() throws IOException {
+            while ( true ) {
+                for ( int i = position; i < limit - 1; i++ ) {
+                    if ( buffer[ i ] == '\r' && buffer[ i + 1 ] == '\n' ) {
+                        String line = new String( buffer, position, i - position, StandardCharsets.UTF_8 );
+                        position = i + 2;
+                        return line;
+                    }
+                }
+                if ( limit - position >= MAX_HEADER_LINE || limit - position >= buffer.length - 1 ) {
+                    throw new MultipartParseException( "Multipart header line too long" );
+                }
+                if ( !fill() ) {
+                    throw new MultipartParseException( "Unexpected end of multipart body" );
+                }
+            }
+        }
+
+        private void write( MultipartFile part, int length ) throws IOException {
+            if ( part != null && length > 0 ) {
+                part.write( buffer, position, length );
+            }
+        }
+
+        /**
+         * 把未处理的数据移到缓冲区开头，再从输入流读入更多数据
+         *
+         * @return 输入流已经结束时返回false
+         */
+        private boolean fill() throws IOException {
+            if ( position > 0 ) {
+                System.arraycopy( buffer, position, buffer, 0, limit - position );
+                limit -= position;
+                position = 0;
+            }
+            int count = in.read( buffer, limit, buffer.length - limit );
+            if ( count < 0 ) {
+                return false;
+            }
+            limit += count;
+            total += count;
+            if ( total > maxRequestSize ) {
+                throw new MultipartSizeException( "Request exceeds the limit of " + maxRequestSize + " bytes" );
+            }
+            return true;
+        }
+
+        private int indexOf( byte[] target ) {
+            outer:
+            for ( int i = position; i <= limit - target.length; i++ ) {
+                for ( int j = 0; j < target.length; j++ ) {
+                    if ( buffer[ i + j ] != target[ j ] ) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            return -1;
+        }
+    }
+}
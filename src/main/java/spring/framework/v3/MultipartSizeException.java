@@ -0,0 +1,13 @@
+package spring.framework.v3;
+
+import java.io.IOException;
+
+/**
+ * multipart请求或其中某个part超过了配置的大小限制，DispatcherCore据此返回413
+ */
+class MultipartSizeException extends IOException {
+
+    MultipartSizeException( String message ) {
+        super( message );
+    }
+}
@@ -0,0 +1,1120 @@
+package spring.framework.v3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 不依赖servlet容器的HTTP/1.1服务
+ * 单个selector线程负责accept和所有连接的读取，请求解析到连接自己的可复用缓冲区中，
+ * 支持keep-alive和pipelining（同一连接上的请求按顺序处理、按顺序响应）。
+ * Controller的调用放在工作线程池中，server.workers=0时直接在selector线程上调用。
+ * 响应由调用Controller的线程直接写到连接上：缓冲区装得下的响应带Content-Length一次写出，
+ * 更大的或者中途flush的响应边生成边发送（长度未知时使用chunked编码），文件通过transferTo直接发送到SocketChannel。
+ * 流式响应（ResponseEmitter）由连接接管，Controller返回后工作线程立即释放，之后的数据非阻塞地写出，
+ * 写不完的部分由selector线程在可写时继续；客户端断开或者到了streaming.timeout时通知ResponseEmitter结束。
+ * 连接数有上限，空闲超过server.idleTimeout的连接会被关闭。
+ * 请求体读到内存中交给Controller，所有连接同时持有的请求体总量受server.maxBodyMemory限制，超出时返回503。
+ * <p>
+ * 启动方式：mvn -Pstandalone compile exec:java [-Dexec.args=application.properties]，
+ * 或者java -cp target/classes:javax.servlet-api.jar spring.framework.v3.NioHttpServer [application.properties]。
+ * <p>
+ * Controller拿到的是LocalExchange模拟的HttpServletRequest/HttpServletResponse，没有servlet容器：
+ * getSession()、startAsync()、RequestDispatcher转发（包括JSP视图）都不可用，调用时抛出UnsupportedOperationException
+ * 或IllegalStateException；认证信息总是null，newPushBuilder()返回null。依赖这些功能的Controller只能部署到容器中（mvn jetty:run）。
+ */
+public class NioHttpServer {
+    private static final byte[] HEADER_END = { '\r', '\n', '\r', '\n' };
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+    private final DispatcherCore dispatcherCore;
+    private final int port;
+    private final String contextPath;
+    private final int maxHeaderSize;
+    private final long maxBodySize;
+    private final long maxBodyMemory;
+    private final int bufferSize;
+    private final int maxConnections;
+    private final long idleTimeoutMillis;
+    // 为null时在selector线程上直接调用Controller
+    private final ExecutorService workers;
+    // 写响应时socket发送缓冲区满了，每个线程用自己的selector等待可写
+    private final ThreadLocal< Selector > writeSelectors = ThreadLocal.withInitial( () -> {
+        try {
+            return Selector.open();
+        } catch ( IOException e ) {
+            throw new UncheckedIOException( e );
+        }
+    } );
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running;
+    // 工作线程处理完请求后，把连接状态的更新交回selector线程执行
+    private final Queue< Runnable > selectorTasks = new ConcurrentLinkedQueue<>();
+    // 读缓冲区池，只在selector线程上访问
+    private final ArrayDeque< ByteBuffer > bufferPool = new ArrayDeque<>();
+    // 当前连接数和上次检查空闲连接的时间，只在selector线程上访问
+    private int connectionCount;
+    // 所有连接为请求体预留的内存，只在selector线程上访问
+    private long bodyMemory;
+    private long lastIdleCheck = System.nanoTime();
+
+    public NioHttpServer( DispatcherCore dispatcherCore ) {
+        Properties config = dispatcherCore.getConfig();
+        this.dispatcherCore = dispatcherCore;
+        this.port = Integer.parseInt( config.getProperty( "server.port", "8090" ) );
+        String path = config.getProperty( "server.contextPath", "" ).trim();
+        this.contextPath = "/".equals( path ) ? "" : path;
+        this.maxHeaderSize = Integer.parseInt( config.getProperty( "server.maxHeaderSize", "16384" ) );
+        this.maxBodySize = Long.parseLong( config.getProperty( "server.maxBodySize", "10485760" ) );
+        this.maxBodyMemory = Long.parseLong( config.getProperty( "server.maxBodyMemory", "67108864" ) );
+        this.bufferSize = Integer.parseInt( config.getProperty( "server.bufferSize", "8192" ) );
+        this.maxConnections = Integer.parseInt( config.getProperty( "server.maxConnections", "1024" ) );
+        this.idleTimeoutMillis = Long.parseLong( config.getProperty( "server.idleTimeout", "30000" ) );
+        int workerCount = Integer.parseInt( config.getProperty( "server.workers",
+                String.valueOf( Runtime.getRuntime().availableProcessors() * 2 ) ) );
+        if ( workerCount <= 0 ) {
+            this.workers = null;
+        } else {
+            AtomicInteger threadIndex = new AtomicInteger();
+            this.workers = new ThreadPoolExecutor( workerCount, workerCount, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread( r, "http-worker-" + threadIndex.incrementAndGet() );
+                thread.setDaemon( true );
+                return thread;
+            } );
+        }
+    }
+
+    public static void main( String[] args ) throws IOException {
+        long start = System.nanoTime();
+        DispatcherCore dispatcherCore = new DispatcherCore();
+        dispatcherCore.init( args.length > 0 ? args[ 0 ] : "application.properties", null );
+        NioHttpServer server = new NioHttpServer( dispatcherCore );
+        server.start();
+        Runtime.getRuntime().addShutdownHook( new Thread( () -> {
+            server.stop();
+            dispatcherCore.destroy();
+        } ) );
+        System.out.println( "NioHttpServer started on port " + server.port + " in "
+                + TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) + " ms" );
+        server.run();
+    }
+
+    public void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking( false );
+        serverChannel.bind( new InetSocketAddress( port ), 1024 );
+        serverChannel.register( selector, SelectionKey.OP_ACCEPT );
+        running = true;
+    }
+
+    /**
+     * 实际监听的端口，server.port配置为0时由系统分配
+     */
+    int getLocalPort() throws IOException {
+        return ( ( InetSocketAddress ) serverChannel.getLocalAddress() ).getPort();
+    }
+
+    public void stop() {
+        running = false;
+        if ( selector != null ) {
+            selector.wakeup();
+        }
+        if ( workers != null ) {
+            workers.shutdown();
+        }
+    }
+
+    /**
+     * selector事件循环，直到stop被调用
+     */
+    public void run() throws IOException {
+        try {
+            while ( running ) {
+                // 定时醒来检查空闲连接
+                selector.select( 1000 );
+                Runnable task;
+                while ( ( task = selectorTasks.poll() ) != null ) {
+                    task.run();
+                }
+                Iterator< SelectionKey > iterator = selector.selectedKeys().iterator();
+                while ( iterator.hasNext() ) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if ( !key.isValid() ) {
+                        continue;
+                    }
+                    try {
+                        if ( key.isAcceptable() ) {
+                            accept();
+                        } else {
+                            Connection connection = ( Connection ) key.attachment();
+                            if ( key.isReadable() ) {
+                                connection.onReadable();
+                            }
+                            if ( key.isValid() && key.isWritable() ) {
+                                connection.onWritable();
+                            }
+                        }
+                    } catch ( IOException | RuntimeException e ) {
+                        // 单个连接出错只关闭这个连接，selector线程不能退出
+                        if ( key.attachment() instanceof Connection ) {
+                            ( ( Connection ) key.attachment() ).close();
+                        }
+                    }
+                }
+                closeIdleConnections();
+            }
+        } finally {
+            for ( SelectionKey key : selector.keys() ) {
+                key.channel().close();
+            }
+            selector.close();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ( ( channel = serverChannel.accept() ) != null ) {
+            if ( connectionCount >= maxConnections ) {
+                // 连接数已满，直接关闭新连接，已有连接不受影响
+                channel.close();
+                continue;
+            }
+            channel.configureBlocking( false );
+            channel.socket().setTcpNoDelay( true );
+            Connection connection = new Connection( channel, borrowBuffer() );
+            connection.key = channel.register( selector, SelectionKey.OP_READ, connection );
+            connectionCount++;
+        }
+    }
+
+    /**
+     * 关闭超过server.idleTimeout没有收发数据的连接；正在处理请求的连接由写超时负责
+     */
+    private void closeIdleConnections() {
+        long now = System.nanoTime();
+        if ( now - lastIdleCheck < TimeUnit.SECONDS.toNanos( 1 ) ) {
+            return;
+        }
+        lastIdleCheck = now;
+        long idleNanos = idleTimeoutMillis > 0 ? TimeUnit.MILLISECONDS.toNanos( idleTimeoutMillis ) : Long.MAX_VALUE;
+        for ( SelectionKey key : selector.keys() ) {
+            if ( key.attachment() instanceof Connection ) {
+                Connection connection = ( Connection ) key.attachment();
+                ResponseOutput stream = connection.stream;
+                if ( stream != null ) {
+                    // 流式响应：客户端迟迟不读就关闭连接，到了streaming.timeout正常结束响应
+                    if ( connection.hasPendingWrites() && now - connection.lastActivity > idleNanos ) {
+                        connection.close();
+                    } else if ( stream.isExpired( now ) ) {
+                        stream.abort();
+                    }
+                } else if ( !connection.busy && now - connection.lastActivity > idleNanos ) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    private ByteBuffer borrowBuffer() {
+        ByteBuffer buffer = bufferPool.poll();
+        return buffer != null ? buffer : ByteBuffer.allocate( bufferSize );
+    }
+
+    private void releaseBuffer( ByteBuffer buffer ) {
+        // 只回收默认大小的缓冲区，因请求头过大而扩容的不保留
+        if ( buffer.capacity() == bufferSize && bufferPool.size() < 256 ) {
+            buffer.clear();
+            bufferPool.push( buffer );
+        }
+    }
+
+    /**
+     * 在工作线程（或selector线程）上调用DispatcherCore，响应边生成边写到连接上，结束后交回selector线程；
+     * 流式响应由ResponseOutput接管，推送结束时才交回
+     */
+    private void handle( ParsedRequest request, Connection connection ) {
+        ResponseOutput output = new ResponseOutput( connection, request );
+        boolean inContext = request.target.startsWith( contextPath );
+        String contentType = request.header( "Content-Type" );
+        LocalExchange exchange;
+        boolean malformed = false;
+        try {
+            exchange = new LocalExchange( request.method, contextPath,
+                    inContext ? request.target.substring( contextPath.length() ) : request.target, output );
+            if ( contentType != null && contentType.startsWith( "application/x-www-form-urlencoded" ) ) {
+                exchange.parseParameters( new String( request.body, 0, request.bodyLength, StandardCharsets.ISO_8859_1 ) );
+            }
+        } catch ( IllegalArgumentException e ) {
+            // 查询串或者表单里有非法的%转义，只用来回答400
+            exchange = new LocalExchange( request.method, contextPath, "/", output );
+            malformed = true;
+        }
+        output.exchange = exchange;
+        boolean keepAlive = false;
+        try {
+            if ( malformed ) {
+                exchange.getResponse().setStatus( 400 );
+                exchange.getResponse().getWriter().write( "400 Bad Request: malformed parameter encoding" );
+            } else if ( !inContext ) {
+                exchange.getResponse().setStatus( 404 );
+                exchange.getResponse().getWriter().write( "404 Not Found" );
+            } else {
+                for ( String[] header : request.headers ) {
+                    exchange.addRequestHeader( header[ 0 ], header[ 1 ] );
+                }
+                exchange.setAddresses( connection.remoteAddress, connection.localAddress );
+                exchange.setBody( new ByteArrayInputStream( request.body, 0, request.bodyLength ) );
+                exchange.getRequest().setAttribute( ResponseEmitter.StreamingTransport.ATTRIBUTE, output );
+                dispatcherCore.service( exchange.getRequest(), exchange.getResponse() );
+            }
+            if ( !output.streaming ) {
+                output.finish();
+                keepAlive = request.keepAlive && !output.closeConnection;
+            }
+        } catch ( IOException e ) {
+            // 客户端断开或者写超时，连接已经不可用
+            if ( output.streaming ) {
+                output.abort();
+            }
+        } catch ( Exception e ) {
+            e.printStackTrace();
+            if ( output.streaming ) {
+                output.abort();
+            } else if ( !output.committed ) {
+                try {
+                    exchange.getResponse().reset();
+                    exchange.getResponse().setStatus( 500 );
+                    output.closeConnection = true;
+                    output.finish();
+                } catch ( Exception ignored ) {
+                    // 连接会被关闭
+                }
+            }
+        } finally {
+            // 无论处理结果如何都要交回selector线程，否则连接一直处于busy状态，既不会被读取也不会被回收
+            if ( !output.streaming ) {
+                connection.requestDone( keepAlive );
+            }
+        }
+    }
+
+    private static String httpDate() {
+        SimpleDateFormat format = new SimpleDateFormat( "EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US );
+        format.setTimeZone( TimeZone.getTimeZone( "GMT" ) );
+        return format.format( new Date() );
+    }
+
+    private static String reasonPhrase( int status ) {
+        switch ( status ) {
+            case 200:
+                return "OK";
+            case 204:
+                return "No Content";
+            case 206:
+                return "Partial Content";
+            case 302:
+                return "Found";
+            case 304:
+                return "Not Modified";
+            case 400:
+                return "Bad Request";
+            case 404:
+                return "Not Found";
+            case 405:
+                return "Method Not Allowed";
+            case 411:
+                return "Length Required";
+            case 413:
+                return "Payload Too Large";
+            case 416:
+                return "Range Not Satisfiable";
+            case 431:
+                return "Request Header Fields Too Large";
+            case 500:
+                return "Internal Server Error";
+            case 503:
+                return "Service Unavailable";
+            default:
+                return "Status";
+        }
+    }
+
+    /**
+     * 解析完成的一个请求
+     */
+    private static class ParsedRequest {
+        private String method;
+        private String target;
+        private boolean http11;
+        private boolean keepAlive;
+        private final List< String[] > headers = new ArrayList<>();
+        private long contentLength;
+        // 随着数据到达逐步扩容，不按Content-Length一次分配
+        private byte[] body = new byte[ 0 ];
+        private int bodyLength;
+
+        String header( String name ) {
+            for ( String[] header : headers ) {
+                if ( header[ 0 ].equalsIgnoreCase( name ) ) {
+                    return header[ 1 ];
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 一个客户端连接。读取和解析只在selector线程上进行；处理请求期间（busy）响应由处理线程直接写出
+     */
+    private class Connection {
+        private final SocketChannel channel;
+        private final InetSocketAddress remoteAddress;
+        private final InetSocketAddress localAddress;
+        private SelectionKey key;
+        // 写模式的读缓冲区，未处理的数据（包括pipelining的后续请求）都在这里
+        private ByteBuffer readBuffer;
+        // 正在读取请求体的请求
+        private ParsedRequest pending;
+        // 正在处理请求，此时不解析下一个请求，保证响应顺序
+        private boolean busy;
+        // 客户端已经关闭了发送方向，当前响应写完后关闭连接
+        private boolean inputShutdown;
+        // 等待socket可写的数据：直接拒绝请求时的错误响应，以及流式响应没能立即写出的部分；
+        // 流式响应的推送线程也会写入，访问时锁住队列本身
+        private final ArrayDeque< ByteBuffer > writeQueue = new ArrayDeque<>();
+        private boolean closeAfterWrite;
+        private volatile boolean closed;
+        // 正在推送的流式响应，用于超时、客户端断开时通知它结束
+        private volatile ResponseOutput stream;
+        // 为当前请求体预留的字节数，请求处理完或者连接关闭时归还
+        private long bodyReserved;
+        // 请求已经处理完，但流式响应还有数据没写完，写完后再继续下一个请求
+        private boolean completePending;
+        private boolean pendingKeepAlive;
+        // 最近一次收发数据的时间，处理线程写响应时也会更新
+        private volatile long lastActivity = System.nanoTime();
+        // 响应缓冲区，同一时间只有一个请求在处理，按需分配后在连接内复用
+        private ByteBuffer responseBuffer;
+
+        Connection( SocketChannel channel, ByteBuffer readBuffer ) throws IOException {
+            this.channel = channel;
+            this.readBuffer = readBuffer;
+            this.remoteAddress = ( InetSocketAddress ) channel.getRemoteAddress();
+            this.localAddress = ( InetSocketAddress ) channel.getLocalAddress();
+        }
+
+        void onReadable() throws IOException {
+            if ( !readBuffer.hasRemaining() && busy ) {
+                // 处理中时缓冲区已满，等当前请求完成再读
+                key.interestOps( key.interestOps() & ~SelectionKey.OP_READ );
+                return;
+            }
+            int count = channel.read( readBuffer );
+            if ( count < 0 ) {
+                if ( busy ) {
+                    // 只是半关闭，正在处理的请求仍然要把响应写完；流式响应没有尽头，客户端不再发送就视为断开
+                    inputShutdown = true;
+                    key.interestOps( key.interestOps() & ~SelectionKey.OP_READ );
+                    ResponseOutput current = stream;
+                    if ( current != null ) {
+                        current.abort();
+                    }
+                } else {
+                    close();
+                }
+                return;
+            }
+            if ( count > 0 ) {
+                lastActivity = System.nanoTime();
+            }
+            processInput();
+        }
+
+        /**
+         * 从缓冲区中解析请求，一次只处理一个
+         */
+        void processInput() throws IOException {
+            while ( !busy && channel.isOpen() ) {
+                ParsedRequest request = parse();
+                if ( request == null ) {
+                    return;
+                }
+                busy = true;
+                if ( workers == null ) {
+                    handle( request, this );
+                } else {
+                    workers.execute( () -> handle( request, this ) );
+                }
+            }
+        }
+
+        /**
+         * @return 完整的请求，数据还不够时返回null
+         */
+        private ParsedRequest parse() throws IOException {
+            if ( pending == null ) {
+                int headerEnd = indexOf( readBuffer, HEADER_END );
+                if ( headerEnd < 0 ) {
+                    if ( !readBuffer.hasRemaining() ) {
+                        if ( readBuffer.capacity() >= maxHeaderSize ) {
+                            reject( 431 );
+                            return null;
+                        }
+                        grow( Math.min( maxHeaderSize, readBuffer.capacity() * 2 ) );
+                    }
+                    return null;
+                }
+                String head = new String( readBuffer.array(), 0, headerEnd, StandardCharsets.ISO_8859_1 );
+                consume( headerEnd + HEADER_END.length );
+                pending = parseHead( head );
+                if ( pending == null ) {
+                    return null;
+                }
+            }
+
+            // 把缓冲区中已经到达的请求体搬到body数组中，数组按需扩容
+            int available = ( int ) Math.min( readBuffer.position(), pending.contentLength - pending.bodyLength );
+            if ( available > 0 ) {
+                int required = pending.bodyLength + available;
+                if ( required > pending.body.length ) {
+                    long capacity = Math.max( required, Math.max( bufferSize, pending.body.length * 2L ) );
+                    pending.body = Arrays.copyOf( pending.body, ( int ) Math.min( pending.contentLength, capacity ) );
+                }
+                readBuffer.flip();
+                readBuffer.get( pending.body, pending.bodyLength, available );
+                readBuffer.compact();
+                pending.bodyLength += available;
+            }
+            if ( pending.bodyLength < pending.contentLength ) {
+                return null;
+            }
+            ParsedRequest request = pending;
+            pending = null;
+            return request;
+        }
+
+        private ParsedRequest parseHead( String head ) throws IOException {
+            String[] lines = head.split( "\r\n" );
+            String[] requestLine = lines[ 0 ].split( " " );
+            if ( requestLine.length != 3 ) {
+                reject( 400 );
+                return null;
+            }
+            ParsedRequest request = new ParsedRequest();
+            request.method = requestLine[ 0 ];
+            request.target = requestLine[ 1 ];
+            request.http11 = "HTTP/1.1".equals( requestLine[ 2 ] );
+            for ( int i = 1; i < lines.length; i++ ) {
+                int colon = lines[ i ].indexOf( ':' );
+                if ( colon > 0 ) {
+                    request.headers.add( new String[] { lines[ i ].substring( 0, colon ).trim(), lines[ i ].substring( colon + 1 ).trim() } );
+                }
+            }
+            String connection = request.header( "Connection" );
+            request.keepAlive = request.http11
+                    ? !"close".equalsIgnoreCase( connection )
+                    : "keep-alive".equalsIgnoreCase( connection );
+
+            if ( request.header( "Transfer-Encoding" ) != null ) {
+                // 不支持分块上传的请求体
+                reject( 411 );
+                return null;
+            }
+            String contentLength = request.header( "Content-Length" );
+            if ( contentLength != null ) {
+                long length;
+                try {
+                    length = Long.parseLong( contentLength );
+                } catch ( NumberFormatException e ) {
+                    reject( 400 );
+                    return null;
+                }
+                if ( length < 0 || length > maxBodySize ) {
+                    reject( 413 );
+                    return null;
+                }
+                // 按Content-Length先预留，所有连接的请求体加起来不能超过server.maxBodyMemory
+                if ( length > maxBodyMemory - bodyMemory ) {
+                    reject( 503 );
+                    return null;
+                }
+                bodyMemory += length;
+                bodyReserved = length;
+                request.contentLength = length;
+            }
+            return request;
+        }
+
+        /**
+         * 请求不合法，直接响应错误并关闭连接
+         */
+        private void reject( int status ) throws IOException {
+            busy = true;
+            pending = null;
+            readBuffer.clear();
+            String response = "HTTP/1.1 " + status + " " + reasonPhrase( status )
+                    + ( status == 503 ? "\r\nRetry-After: 1" : "" )
+                    + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n";
+            synchronized ( writeQueue ) {
+                writeQueue.add( ByteBuffer.wrap( response.getBytes( StandardCharsets.ISO_8859_1 ) ) );
+            }
+            closeAfterWrite = true;
+            key.interestOps( SelectionKey.OP_WRITE );
+        }
+
+        /**
+         * 请求处理完毕，回到selector线程上继续处理后续请求
+         */
+        private void complete( boolean keepAlive ) {
+            releaseBody();
+            if ( !channel.isOpen() ) {
+                return;
+            }
+            if ( hasPendingWrites() ) {
+                completePending = true;
+                pendingKeepAlive = keepAlive;
+                return;
+            }
+            if ( !keepAlive || inputShutdown ) {
+                close();
+                return;
+            }
+            busy = false;
+            lastActivity = System.nanoTime();
+            try {
+                key.interestOps( SelectionKey.OP_READ );
+                // 继续处理已经读到的pipelining请求
+                processInput();
+            } catch ( IOException e ) {
+                close();
+            }
+        }
+
+        /**
+         * 处理结束后交回selector线程，可以在任意线程上调用
+         */
+        void requestDone( boolean keepAlive ) {
+            selectorTasks.add( () -> complete( keepAlive ) );
+            selector.wakeup();
+        }
+
+        void onWritable() throws IOException {
+            synchronized ( writeQueue ) {
+                while ( !writeQueue.isEmpty() ) {
+                    ByteBuffer buffer = writeQueue.peek();
+                    if ( channel.write( buffer ) > 0 ) {
+                        lastActivity = System.nanoTime();
+                    }
+                    if ( buffer.hasRemaining() ) {
+                        // socket发送缓冲区满了，等待可写
+                        return;
+                    }
+                    writeQueue.poll();
+                }
+            }
+            key.interestOps( key.interestOps() & ~SelectionKey.OP_WRITE );
+            if ( closeAfterWrite ) {
+                close();
+                return;
+            }
+            if ( completePending ) {
+                completePending = false;
+                complete( pendingKeepAlive );
+                return;
+            }
+            ResponseOutput current = stream;
+            if ( current != null ) {
+                current.onWritePossible();
+            }
+        }
+
+        /**
+         * 流式响应的推送线程调用，能写多少写多少，剩余的数据复制到队列中由selector线程在可写时写出，从不阻塞
+         */
+        void writeNonBlocking( ByteBuffer... buffers ) throws IOException {
+            synchronized ( writeQueue ) {
+                if ( closed ) {
+                    throw new ClosedChannelException();
+                }
+                // 队列里还有数据时不能插队
+                if ( writeQueue.isEmpty() && channel.write( buffers ) > 0 ) {
+                    lastActivity = System.nanoTime();
+                }
+                boolean queued = false;
+                for ( ByteBuffer buffer : buffers ) {
+                    if ( buffer.hasRemaining() ) {
+                        // 调用方的缓冲区之后会被复用，必须复制
+                        ByteBuffer copy = ByteBuffer.allocate( buffer.remaining() );
+                        copy.put( buffer ).flip();
+                        writeQueue.add( copy );
+                        queued = true;
+                    }
+                }
+                if ( !queued ) {
+                    return;
+                }
+            }
+            selectorTasks.add( () -> {
+                if ( key.isValid() ) {
+                    key.interestOps( key.interestOps() | SelectionKey.OP_WRITE );
+                }
+            } );
+            selector.wakeup();
+        }
+
+        boolean hasPendingWrites() {
+            synchronized ( writeQueue ) {
+                return !writeQueue.isEmpty();
+            }
+        }
+
+        /**
+         * 由处理线程调用，把数据全部写出；发送缓冲区满时阻塞等待，超过server.idleTimeout仍不可写则放弃
+         */
+        void writeFully( ByteBuffer... buffers ) throws IOException {
+            long remaining = 0;
+            for ( ByteBuffer buffer : buffers ) {
+                remaining += buffer.remaining();
+            }
+            while ( remaining > 0 ) {
+                long count = channel.write( buffers );
+                if ( count == 0 ) {
+                    awaitWritable();
+                } else {
+                    remaining -= count;
+                    lastActivity = System.nanoTime();
+                }
+            }
+        }
+
+        /**
+         * 由处理线程调用，把文件的一段通过transferTo直接发送到socket
+         */
+        void transferFully( FileChannel file, long position, long count ) throws IOException {
+            long end = position + count;
+            while ( position < end ) {
+                long transferred = file.transferTo( position, end - position, channel );
+                if ( transferred == 0 ) {
+                    if ( position >= file.size() ) {
+                        throw new IOException( "File is shorter than the announced length" );
+                    }
+                    awaitWritable();
+                } else {
+                    position += transferred;
+                    lastActivity = System.nanoTime();
+                }
+            }
+        }
+
+        private void awaitWritable() throws IOException {
+            Selector writeSelector = writeSelectors.get();
+            SelectionKey writeKey = channel.register( writeSelector, SelectionKey.OP_WRITE );
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( idleTimeoutMillis );
+            try {
+                // select可能提前返回，以就绪状态和截止时间为准
+                while ( !writeKey.isWritable() ) {
+                    if ( idleTimeoutMillis <= 0 ) {
+                        writeSelector.select();
+                        continue;
+                    }
+                    long remaining = TimeUnit.NANOSECONDS.toMillis( deadline - System.nanoTime() );
+                    if ( remaining <= 0 ) {
+                        throw new SocketTimeoutException( "Timed out writing the response" );
+                    }
+                    writeSelector.select( remaining );
+                }
+            } finally {
+                writeKey.cancel();
+                writeSelector.selectedKeys().clear();
+                // 让取消立即生效，下次才能重新注册
+                writeSelector.selectNow();
+            }
+        }
+
+        void close() {
+            if ( closed ) {
+                return;
+            }
+            synchronized ( writeQueue ) {
+                closed = true;
+                writeQueue.clear();
+            }
+            connectionCount--;
+            releaseBody();
+            try {
+                channel.close();
+            } catch ( IOException e ) {
+                // 连接已经不可用，忽略
+            }
+            key.cancel();
+            ResponseOutput current = stream;
+            if ( current != null ) {
+                current.abort();
+            }
+            if ( readBuffer != null ) {
+                releaseBuffer( readBuffer );
+                readBuffer = null;
+            }
+        }
+
+        private void releaseBody() {
+            bodyMemory -= bodyReserved;
+            bodyReserved = 0;
+        }
+
+        private void consume( int count ) {
+            readBuffer.flip();
+            readBuffer.position( count );
+            readBuffer.compact();
+        }
+
+        private void grow( int capacity ) {
+            ByteBuffer larger = ByteBuffer.allocate( capacity );
+            readBuffer.flip();
+            larger.put( readBuffer );
+            releaseBuffer( readBuffer );
+            readBuffer = larger;
+        }
+
+        private int indexOf( ByteBuffer buffer, byte[] target ) {
+            byte[] array = buffer.array();
+            int limit = buffer.position() - target.length;
+            outer:
+            for ( int i = 0; i <= limit; i++ ) {
+                for ( int j = 0; j < target.length; j++ ) {
+                    if ( array[ i + j ] != target[ j ] ) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * 一个响应的输出，只在处理该请求的线程上使用
+     * 响应体先进入连接的响应缓冲区，处理结束时还没有提交的响应带Content-Length一次写出；
+     * 缓冲区写满或者Controller主动flush时提交响应头，之后的数据直接写到连接上。
+     */
+    private class ResponseOutput extends OutputStream
+            implements LocalExchange.ResponseSink, ResourceHandler.FileTransferTarget, ResponseEmitter.StreamingTransport {
+        private final Connection connection;
+        private final ParsedRequest request;
+        private final boolean headOnly;
+        private final ByteBuffer buffer;
+        private LocalExchange exchange;
+
+        private boolean committed;
+        // 提交时还没有发送的响应头，和第一段响应体一起写出
+        private ByteBuffer head;
+        private boolean chunked;
+        // Controller声明的Content-Length，-1表示没有声明
+        private long declaredLength = -1;
+        // 提交之后写出的响应体字节数
+        private long written;
+        // HEAD请求丢弃的响应体字节数
+        private long discarded;
+        // 响应以关闭连接结束，或者实际长度与声明不符，连接不能复用
+        private boolean closeConnection;
+
+        // 流式响应接管后为true，之后由推送线程和selector线程非阻塞地写出，处理线程不再等待
+        private volatile boolean streaming;
+        private boolean streamCompleted;
+        private Runnable onStreamClose;
+        // 流式响应的截止时间，0表示不超时
+        private long streamDeadline;
+        private volatile Runnable writeListener;
+
+        ResponseOutput( Connection connection, ParsedRequest request ) {
+            this.connection = connection;
+            this.request = request;
+            this.headOnly = "HEAD".equals( request.method );
+            if ( connection.responseBuffer == null ) {
+                connection.responseBuffer = ByteBuffer.allocate( bufferSize );
+            }
+            this.buffer = connection.responseBuffer;
+            this.buffer.clear();
+        }
+
+        @Override
+        public void write( int b ) throws IOException {
+            if ( headOnly ) {
+                discarded++;
+                return;
+            }
+            if ( !buffer.hasRemaining() ) {
+                flushBuffer();
+            }
+            buffer.put( ( byte ) b );
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len ) throws IOException {
+            if ( headOnly ) {
+                discarded += len;
+                return;
+            }
+            if ( buffer.remaining() >= len ) {
+                buffer.put( b, off, len );
+                return;
+            }
+            flushBuffer();
+            if ( len >= buffer.capacity() ) {
+                // 大块数据不经过缓冲区
+                sendBody( ByteBuffer.wrap( b, off, len ) );
+            } else {
+                buffer.put( b, off, len );
+            }
+        }
+
+        /**
+         * Controller主动flush时立即提交并发送，流式响应依靠这一点把数据推给客户端
+         */
+        @Override
+        public void flush() throws IOException {
+            if ( headOnly ) {
+                return;
+            }
+            flushBuffer();
+            if ( head != null ) {
+                send();
+            }
+        }
+
+        @Override
+        public void transferFrom( FileChannel file, long position, long count ) throws IOException {
+            if ( headOnly || count <= 0 ) {
+                return;
+            }
+            flushBuffer();
+            if ( chunked ) {
+                send( chunkHeader( count ) );
+            } else if ( head != null ) {
+                send();
+            }
+            connection.transferFully( file, position, count );
+            written += count;
+            if ( chunked ) {
+                send( ByteBuffer.wrap( CRLF ) );
+            }
+        }
+
+        @Override
+        public boolean isCommitted() {
+            return committed;
+        }
+
+        @Override
+        public void resetBuffer() {
+            buffer.clear();
+            discarded = 0;
+        }
+
+        @Override
+        public boolean isReady() {
+            return !connection.hasPendingWrites();
+        }
+
+        @Override
+        public void setWriteListener( Runnable onWritePossible ) {
+            writeListener = onWritePossible;
+            onWritePossible.run();
+        }
+
+        @Override
+        public void start( long timeout, Runnable onClose ) {
+            onStreamClose = onClose;
+            streamDeadline = timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( timeout ) : 0;
+            streaming = true;
+            connection.stream = this;
+        }
+
+        /**
+         * 由ResponseEmitter在推送结束时调用（同一时间只有一个线程），写出剩余数据后把连接交回selector线程
+         */
+        @Override
+        public void complete() {
+            if ( streamCompleted ) {
+                return;
+            }
+            streamCompleted = true;
+            connection.stream = null;
+            boolean keepAlive = false;
+            try {
+                finish();
+                keepAlive = request.keepAlive && !closeConnection;
+            } catch ( IOException e ) {
+                // 客户端已经断开
+            }
+            connection.requestDone( keepAlive );
+        }
+
+        /**
+         * 超时、客户端断开或者连接关闭时通知ResponseEmitter结束推送
+         */
+        void abort() {
+            Runnable onClose = onStreamClose;
+            if ( onClose != null ) {
+                onClose.run();
+            }
+        }
+
+        boolean isExpired( long now ) {
+            return streamDeadline != 0 && now - streamDeadline > 0;
+        }
+
+        void onWritePossible() {
+            Runnable listener = writeListener;
+            if ( listener != null ) {
+                listener.run();
+            }
+        }
+
+        /**
+         * Controller返回后调用，发送剩余的数据并结束响应
+         */
+        void finish() throws IOException {
+            exchange.flushWriter();
+            if ( !committed ) {
+                commit( true );
+                if ( buffer.position() > 0 && !headOnly ) {
+                    buffer.flip();
+                    send( buffer );
+                } else {
+                    send();
+                }
+                return;
+            }
+            flushBuffer();
+            if ( chunked ) {
+                send( ByteBuffer.wrap( LAST_CHUNK ) );
+            } else if ( head != null ) {
+                send();
+            }
+            if ( declaredLength >= 0 && written != declaredLength ) {
+                closeConnection = true;
+            }
+        }
+
+        private void flushBuffer() throws IOException {
+            if ( !committed ) {
+                commit( false );
+            }
+            if ( buffer.position() > 0 ) {
+                buffer.flip();
+                sendBody( buffer );
+                buffer.clear();
+            }
+        }
+
+        private void sendBody( ByteBuffer data ) throws IOException {
+            int length = data.remaining();
+            if ( chunked ) {
+                send( chunkHeader( length ), data, ByteBuffer.wrap( CRLF ) );
+            } else {
+                send( data );
+            }
+            written += length;
+        }
+
+        private void send( ByteBuffer... data ) throws IOException {
+            ByteBuffer[] buffers = data;
+            if ( head != null ) {
+                buffers = new ByteBuffer[ data.length + 1 ];
+                buffers[ 0 ] = head;
+                System.arraycopy( data, 0, buffers, 1, data.length );
+                head = null;
+            }
+            if ( streaming ) {
+                connection.writeNonBlocking( buffers );
+            } else {
+                connection.writeFully( buffers );
+            }
+        }
+
+        private ByteBuffer chunkHeader( long length ) {
+            return ByteBuffer.wrap( ( Long.toHexString( length ) + "\r\n" ).getBytes( StandardCharsets.ISO_8859_1 ) );
+        }
+
+        /**
+         * 生成状态行和响应头
+         *
+         * @param complete 响应体已经全部在缓冲区中，可以直接给出Content-Length
+         */
+        private void commit( boolean complete ) {
+            committed = true;
+            int status = exchange.getStatus();
+            StringBuilder builder = new StringBuilder( 256 );
+            builder.append( "HTTP/1.1 " ).append( status ).append( ' ' ).append( reasonPhrase( status ) ).append( "\r\n" );
+            String contentLength = null;
+            for ( Map.Entry< String, List< String > > header : exchange.getResponseHeaders().entrySet() ) {
+                String name = header.getKey();
+                if ( "Content-Length".equalsIgnoreCase( name ) ) {
+                    contentLength = header.getValue().get( 0 );
+                    continue;
+                }
+                if ( "Transfer-Encoding".equalsIgnoreCase( name ) || "Connection".equalsIgnoreCase( name ) ) {
+                    continue;
+                }
+                for ( String value : header.getValue() ) {
+                    builder.append( name ).append( ": " ).append( value ).append( "\r\n" );
+                }
+            }
+            if ( headOnly ) {
+                // HEAD请求保留Controller给出的Content-Length，没有给出时按丢弃的字节数计算
+                builder.append( "Content-Length: " ).append( contentLength != null ? contentLength : String.valueOf( discarded ) ).append( "\r\n" );
+            } else if ( complete ) {
+                builder.append( "Content-Length: " ).append( buffer.position() ).append( "\r\n" );
+            } else if ( contentLength != null ) {
+                declaredLength = Long.parseLong( contentLength.trim() );
+                builder.append( "Content-Length: " ).append( declaredLength ).append( "\r\n" );
+            } else if ( request.http11 ) {
+                chunked = true;
+                builder.append( "Transfer-Encoding: chunked\r\n" );
+            } else {
+                // HTTP/1.0不支持chunked，以关闭连接表示响应结束
+                closeConnection = true;
+            }
+            builder.append( "Date: " ).append( httpDate() ).append( "\r\n" );
+            boolean keepAlive = request.keepAlive && !closeConnection;
+            builder.append( "Connection: " ).append( keepAlive ? "keep-alive" : "close" ).append( "\r\n\r\n" );
+            head = ByteBuffer.wrap( builder.toString().getBytes( StandardCharsets.ISO_8859_1 ) );
+        }
+    }
+}
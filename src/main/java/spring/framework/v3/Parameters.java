@@ -0,0 +1,53 @@
+package spring.framework.v3;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Map;
+
+/**
+ * 请求参数表的工具方法，查询串、表单和multipart字段都按同样的规则合并到一个Map< String, String[] >中
+ */
+final class Parameters {
+    private Parameters() {
+    }
+
+    /**
+     * 解析application/x-www-form-urlencoded格式的参数，追加到参数表中
+     *
+     * @throws IllegalArgumentException 含有非法的%转义
+     */
+    static void parse( Map< String, String[] > parameters, String encoded ) {
+        for ( String pair : encoded.split( "&" ) ) {
+            if ( "".equals( pair ) ) {
+                continue;
+            }
+            int eq = pair.indexOf( '=' );
+            String name = decode( eq < 0 ? pair : pair.substring( 0, eq ) );
+            String value = eq < 0 ? "" : decode( pair.substring( eq + 1 ) );
+            add( parameters, name, value );
+        }
+    }
+
+    /**
+     * 同名参数按出现的顺序追加到数组末尾
+     */
+    static void add( Map< String, String[] > parameters, String name, String value ) {
+        String[] values = parameters.get( name );
+        if ( values == null ) {
+            parameters.put( name, new String[] { value } );
+        } else {
+            String[] merged = new String[ values.length + 1 ];
+            System.arraycopy( values, 0, merged, 0, values.length );
+            merged[ values.length ] = value;
+            parameters.put( name, merged );
+        }
+    }
+
+    private static String decode( String value ) {
+        try {
+            return URLDecoder.decode( value, "UTF-8" );
+        } catch ( UnsupportedEncodingException e ) {
+            throw new IllegalStateException( e );
+        }
+    }
+}
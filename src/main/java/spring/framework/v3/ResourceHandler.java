@@ -0,0 +1,297 @@
+package spring.framework.v3;
+
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 静态资源处理器
+ * 没有匹配到Controller的GET/HEAD请求由这里从配置的目录中查找文件，
+ * 小文件缓存在内存中，大文件通过FileChannel.transferTo分段写出，不需要把整个文件读入内存。
+ * 容器的ServletOutputStream只能包装成普通的WritableByteChannel，transferTo会退化为经过堆内数组的复制，并不是零拷贝；
+ * 独立运行时输出实现了FileTransferTarget，文件直接传输到SocketChannel。
+ * 独立运行时没有ServletContext，MIME类型按文件名推断，也不支持JSP。
+ */
+class ResourceHandler {
+    private static final String GZIP_SUFFIX = ".gz";
+
+    /**
+     * 可以直接接收文件内容的输出。独立运行时由NioHttpServer实现，transferTo的目标就是SocketChannel，
+     * 由操作系统完成复制（sendfile），不经过堆内存
+     */
+    interface FileTransferTarget {
+        void transferFrom( FileChannel file, long position, long count ) throws IOException;
+    }
+
+    private final Path root;
+    private final ServletContext servletContext;
+    private final String welcomeFile;
+    // 能放入缓存的单个文件的最大字节数
+    private final long maxCachedFileSize;
+    // 缓存的总字节数上限
+    private final long maxCacheSize;
+
+    // LRU缓存，key为文件的绝对路径
+    private final Map< Path, CachedFile > cache = new LinkedHashMap<>( 64, 0.75f, true );
+    private long cacheSize;
+
+    ResourceHandler( Path root, ServletContext servletContext, String welcomeFile, long maxCachedFileSize, long maxCacheSize ) {
+        this.root = root.toAbsolutePath().normalize();
+        this.servletContext = servletContext;
+        this.welcomeFile = welcomeFile;
+        this.maxCachedFileSize = maxCachedFileSize;
+        this.maxCacheSize = maxCacheSize;
+    }
+
+    /**
+     * 处理静态资源请求
+     *
+     * @param path 去掉contextPath后的请求路径
+     * @return 找到了对应资源并已经写出响应时返回true
+     */
+    boolean handle( HttpServletRequest req, HttpServletResponse resp, String path ) throws IOException, ServletException {
+        String method = req.getMethod();
+        if ( !"GET".equals( method ) && !"HEAD".equals( method ) ) {
+            return false;
+        }
+        if ( path.endsWith( "/" ) ) {
+            path = path + welcomeFile;
+        }
+        Path file = root.resolve( path.substring( 1 ) ).normalize();
+        if ( !file.startsWith( root ) || !Files.isRegularFile( file ) ) {
+            return false;
+        }
+        // WEB-INF和META-INF下的内容不允许直接访问，必须在规范化之后判断，/./WEB-INF、/x/../WEB-INF也要拦住
+        Path relative = root.relativize( file );
+        if ( relative.getNameCount() > 0 ) {
+            String first = relative.getName( 0 ).toString().toUpperCase();
+            if ( "WEB-INF".equals( first ) || "META-INF".equals( first ) ) {
+                return false;
+            }
+        }
+        // 后续（JSP转发）统一使用规范化之后的路径
+        path = "/" + relative.toString().replace( File.separatorChar, '/' );
+
+        // JSP交给容器自带的jsp servlet编译执行，不能当作静态文件输出源码
+        if ( path.endsWith( ".jsp" ) ) {
+            RequestDispatcher jspDispatcher = servletContext == null ? null : servletContext.getNamedDispatcher( "jsp" );
+            if ( jspDispatcher == null ) {
+                return false;
+            }
+            jspDispatcher.forward( new JspRequest( req, path ), resp );
+            return true;
+        }
+
+        serveFile( req, resp, file, "HEAD".equals( method ) );
+        return true;
+    }
+
+    private void serveFile( HttpServletRequest req, HttpServletResponse resp, Path file, boolean headOnly ) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes( file, BasicFileAttributes.class );
+        long lastModified = attributes.lastModifiedTime().toMillis();
+
+        resp.setDateHeader( "Last-Modified", lastModified );
+        resp.setHeader( "Accept-Ranges", "bytes" );
+        // HTTP日期只精确到秒
+        long ifModifiedSince = req.getDateHeader( "If-Modified-Since" );
+        if ( ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000 ) {
+            resp.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+            return;
+        }
+
+        String fileName = file.getFileName().toString();
+        String contentType = servletContext != null ? servletContext.getMimeType( fileName ) : URLConnection.guessContentTypeFromName( fileName );
+        resp.setContentType( contentType != null ? contentType : "application/octet-stream" );
+
+        String range = req.getHeader( "Range" );
+        if ( range == null ) {
+            // 客户端支持gzip并且存在不旧于原文件的预压缩文件时，直接输出.gz文件
+            Path gzipFile = file.resolveSibling( file.getFileName() + GZIP_SUFFIX );
+            resp.setHeader( "Vary", "Accept-Encoding" );
+            if ( acceptsGzip( req ) && Files.isRegularFile( gzipFile )
+                    && Files.getLastModifiedTime( gzipFile ).toMillis() >= lastModified ) {
+                BasicFileAttributes gzipAttributes = Files.readAttributes( gzipFile, BasicFileAttributes.class );
+                resp.setHeader( "Content-Encoding", "gzip" );
+                writeRange( resp, gzipFile, gzipAttributes, 0, gzipAttributes.size(), headOnly );
+                return;
+            }
+            writeRange( resp, file, attributes, 0, attributes.size(), headOnly );
+            return;
+        }
+
+        long size = attributes.size();
+        long[] bounds = parseRange( range, size );
+        if ( bounds == null ) {
+            // 无法识别或者多段的Range，按规范可以忽略，返回完整内容
+            writeRange( resp, file, attributes, 0, size, headOnly );
+            return;
+        }
+        if ( bounds.length == 0 ) {
+            resp.setStatus( HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE );
+            resp.setHeader( "Content-Range", "bytes */" + size );
+            return;
+        }
+        resp.setStatus( HttpServletResponse.SC_PARTIAL_CONTENT );
+        resp.setHeader( "Content-Range", "bytes " + bounds[ 0 ] + "-" + bounds[ 1 ] + "/" + size );
+        writeRange( resp, file, attributes, bounds[ 0 ], bounds[ 1 ] - bounds[ 0 ] + 1, headOnly );
+    }
+
+    private boolean acceptsGzip( HttpServletRequest req ) {
+        String acceptEncoding = req.getHeader( "Accept-Encoding" );
+        return acceptEncoding != null && acceptEncoding.contains( "gzip" );
+    }
+
+    /**
+     * 解析单段的Range头
+     *
+     * @return null表示忽略该Range；空数组表示范围不可满足；否则为[起始, 结束]（均包含）
+     */
+    private long[] parseRange( String range, long size ) {
+        if ( !range.startsWith( "bytes=" ) || range.indexOf( ',' ) >= 0 ) {
+            return null;
+        }
+        String spec = range.substring( "bytes=".length() ).trim();
+        int dash = spec.indexOf( '-' );
+        if ( dash < 0 ) {
+            return null;
+        }
+        try {
+            long start;
+            long end;
+            if ( dash == 0 ) {
+                // bytes=-500 表示最后500个字节
+                long suffixLength = Long.parseLong( spec.substring( 1 ) );
+                if ( suffixLength <= 0 ) {
+                    return new long[ 0 ];
+                }
+                start = Math.max( 0, size - suffixLength );
+                end = size - 1;
+            } else {
+                start = Long.parseLong( spec.substring( 0, dash ) );
+                end = dash == spec.length() - 1 ? size - 1 : Math.min( size - 1, Long.parseLong( spec.substring( dash + 1 ) ) );
+            }
+            if ( start >= size || start > end ) {
+                return new long[ 0 ];
+            }
+            return new long[] { start, end };
+        } catch ( NumberFormatException e ) {
+            return null;
+        }
+    }
+
+    private void writeRange( HttpServletResponse resp, Path file, BasicFileAttributes attributes,
+                             long position, long length, boolean headOnly ) throws IOException {
+        resp.setContentLengthLong( length );
+        if ( headOnly ) {
+            return;
+        }
+        OutputStream out = resp.getOutputStream();
+
+        if ( attributes.size() <= maxCachedFileSize ) {
+            byte[] content = getCachedContent( file, attributes );
+            out.write( content, ( int ) position, ( int ) length );
+            return;
+        }
+
+        // 大文件分段传输，目标不是文件或套接字通道时JDK内部仍会经过堆内缓冲复制；transferTo一次不一定能传完，需要循环
+        try ( FileChannel channel = FileChannel.open( file, StandardOpenOption.READ ) ) {
+            if ( out instanceof FileTransferTarget ) {
+                ( ( FileTransferTarget ) out ).transferFrom( channel, position, length );
+                return;
+            }
+            WritableByteChannel target = Channels.newChannel( out );
+            long end = position + length;
+            while ( position < end ) {
+                long transferred = channel.transferTo( position, end - position, target );
+                if ( transferred <= 0 ) {
+                    break;
+                }
+                position += transferred;
+            }
+        }
+    }
+
+    private byte[] getCachedContent( Path file, BasicFileAttributes attributes ) throws IOException {
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        synchronized ( cache ) {
+            CachedFile cached = cache.get( file );
+            if ( cached != null && cached.lastModified == lastModified && cached.content.length == attributes.size() ) {
+                return cached.content;
+            }
+        }
+
+        byte[] content = new byte[ ( int ) attributes.size() ];
+        try ( FileChannel channel = FileChannel.open( file, StandardOpenOption.READ ) ) {
+            ByteBuffer buffer = ByteBuffer.wrap( content );
+            while ( buffer.hasRemaining() && channel.read( buffer ) >= 0 ) {
+                // 读满为止
+            }
+        }
+
+        synchronized ( cache ) {
+            CachedFile previous = cache.put( file, new CachedFile( content, lastModified ) );
+            if ( previous != null ) {
+                cacheSize -= previous.content.length;
+            }
+            cacheSize += content.length;
+            // 超过总量时淘汰最久未使用的文件
+            Iterator< CachedFile > iterator = cache.values().iterator();
+            while ( cacheSize > maxCacheSize && iterator.hasNext() ) {
+                cacheSize -= iterator.next().content.length;
+                iterator.remove();
+            }
+        }
+        return content;
+    }
+
+    private static class CachedFile {
+        private final byte[] content;
+        private final long lastModified;
+
+        CachedFile( byte[] content, long lastModified ) {
+            this.content = content;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * DispatcherServlet映射在/*上，jsp servlet根据servletPath + pathInfo定位文件，
+     * 这里把欢迎页等改写后的路径交给它
+     */
+    private static class JspRequest extends HttpServletRequestWrapper {
+        private final String path;
+
+        JspRequest( HttpServletRequest request, String path ) {
+            super( request );
+            this.path = path;
+        }
+
+        @Override
+        public String getServletPath() {
+            return path;
+        }
+
+        @Override
+        public String getPathInfo() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package spring.framework.v3;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.Deflater;
+
+/**
+ * 响应压缩
+ * 根据Accept-Encoding协商gzip/deflate，只有输出超过阈值并且是可压缩的类型时才真正压缩，
+ * 可选地把可缓存响应的压缩结果保存下来，下次同样的请求直接输出，不再调用Controller。
+ */
+class ResponseCompressor {
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    // 超过该字节数才压缩，太小的响应压缩后反而更大
+    private final int minSize;
+    private final List< String > mimeTypes = new ArrayList<>();
+    private final DeflaterPool gzipPool;
+    private final DeflaterPool deflatePool;
+
+    private final boolean cacheEnabled;
+    // 单个压缩结果超过该字节数不缓存
+    private final int maxCacheEntrySize;
+    private final long maxCacheSize;
+    // LRU缓存，key为 编码 + URI + 查询串
+    private final Map< String, CachedBody > cache = new LinkedHashMap<>( 64, 0.75f, true );
+    private long cacheSize;
+
+    ResponseCompressor( Properties config ) {
+        this.minSize = Integer.parseInt( config.getProperty( "compression.minSize", "1024" ) );
+        for ( String mimeType : config.getProperty( "compression.mimeTypes",
+                "text/html,text/plain,text/css,text/xml,application/json,application/javascript,application/xml" ).split( "," ) ) {
+            if ( !"".equals( mimeType.trim() ) ) {
+                mimeTypes.add( mimeType.trim().toLowerCase() );
+            }
+        }
+        int level = Integer.parseInt( config.getProperty( "compression.level", String.valueOf( Deflater.DEFAULT_COMPRESSION ) ) );
+        int poolSize = Integer.parseInt( config.getProperty( "compression.poolSize", "32" ) );
+        this.gzipPool = new DeflaterPool( poolSize, level, true );
+        this.deflatePool = new DeflaterPool( poolSize, level, false );
+        this.cacheEnabled = Boolean.parseBoolean( config.getProperty( "compression.cache.enabled", "false" ) );
+        this.maxCacheEntrySize = Integer.parseInt( config.getProperty( "compression.cache.maxEntrySize", "262144" ) );
+        this.maxCacheSize = Long.parseLong( config.getProperty( "compression.cache.maxSize", "16777216" ) );
+    }
+
+    /**
+     * 根据Accept-Encoding选择压缩算法，优先gzip
+     *
+     * @return gzip、deflate或者null（不压缩）
+     */
+    String negotiate( HttpServletRequest req ) {
+        String acceptEncoding = req.getHeader( "Accept-Encoding" );
+        if ( acceptEncoding == null ) {
+            return null;
+        }
+        boolean deflate = false;
+        for ( String token : acceptEncoding.toLowerCase().split( "," ) ) {
+            String[] parts = token.trim().split( ";" );
+            // q=0表示明确拒绝该编码
+            if ( parts.length > 1 && parts[ 1 ].trim().matches( "q=0(\\.0*)?" ) ) {
+                continue;
+            }
+            if ( GZIP.equals( parts[ 0 ].trim() ) ) {
+                return GZIP;
+            }
+            if ( DEFLATE.equals( parts[ 0 ].trim() ) ) {
+                deflate = true;
+            }
+        }
+        return deflate ? DEFLATE : null;
+    }
+
+    CompressingResponse wrap( HttpServletRequest req, HttpServletResponse resp, String encoding ) {
+        String cacheKey = cacheEnabled && "GET".equals( req.getMethod() ) ? cacheKey( req, encoding ) : null;
+        return new CompressingResponse( resp, this, encoding, minSize, cacheKey, maxCacheEntrySize );
+    }
+
+    /**
+     * 命中压缩缓存时直接输出
+     *
+     * @return 已经输出响应时返回true
+     */
+    boolean serveCached( HttpServletRequest req, HttpServletResponse resp, String encoding ) throws IOException {
+        if ( !cacheEnabled || !"GET".equals( req.getMethod() ) ) {
+            return false;
+        }
+        String key = cacheKey( req, encoding );
+        CachedBody cached;
+        synchronized ( cache ) {
+            cached = cache.get( key );
+            if ( cached != null && cached.expiresAt < System.currentTimeMillis() ) {
+                cache.remove( key );
+                cacheSize -= cached.body.length;
+                cached = null;
+            }
+        }
+        if ( cached == null ) {
+            return false;
+        }
+        if ( cached.contentType != null ) {
+            resp.setContentType( cached.contentType );
+        }
+        resp.setHeader( "Cache-Control", cached.cacheControl );
+        resp.setHeader( "Content-Encoding", encoding );
+        resp.setHeader( "Vary", "Accept-Encoding" );
+        resp.setContentLength( cached.body.length );
+        resp.getOutputStream().write( cached.body );
+        return true;
+    }
+
+    boolean isCompressible( String contentType ) {
+        if ( contentType == null ) {
+            return false;
+        }
+        String mimeType = contentType.toLowerCase();
+        int semicolon = mimeType.indexOf( ';' );
+        if ( semicolon >= 0 ) {
+            mimeType = mimeType.substring( 0, semicolon );
+        }
+        return mimeTypes.contains( mimeType.trim() );
+    }
+
+    DeflaterPool getPool( String encoding ) {
+        return GZIP.equals( encoding ) ? gzipPool : deflatePool;
+    }
+
+    /**
+     * 响应结束后由CompressingResponse回调，只缓存带有max-age的200响应
+     */
+    void store( String key, HttpServletResponse resp, String contentType, byte[] body ) {
+        if ( resp.getStatus() != HttpServletResponse.SC_OK ) {
+            return;
+        }
+        String cacheControl = resp.getHeader( "Cache-Control" );
+        long maxAge = parseMaxAge( cacheControl );
+        if ( maxAge <= 0 ) {
+            return;
+        }
+        CachedBody cached = new CachedBody( body, contentType, cacheControl, System.currentTimeMillis() + maxAge * 1000 );
+        synchronized ( cache ) {
+            CachedBody previous = cache.put( key, cached );
+            if ( previous != null ) {
+                cacheSize -= previous.body.length;
+            }
+            cacheSize += body.length;
+            Iterator< CachedBody > iterator = cache.values().iterator();
+            while ( cacheSize > maxCacheSize && iterator.hasNext() ) {
+                cacheSize -= iterator.next().body.length;
+                iterator.remove();
+            }
+        }
+    }
+
+    private long parseMaxAge( String cacheControl ) {
+        if ( cacheControl == null ) {
+            return -1;
+        }
+        long maxAge = -1;
+        for ( String directive : cacheControl.toLowerCase().split( "," ) ) {
+            directive = directive.trim();
+            if ( "no-store".equals( directive ) || "no-cache".equals( directive ) || "private".equals( directive ) ) {
+                return -1;
+            }
+            if ( directive.startsWith( "max-age=" ) ) {
+                try {
+                    maxAge = Long.parseLong( directive.substring( "max-age=".length() ) );
+                } catch ( NumberFormatException e ) {
+                    return -1;
+                }
+            }
+        }
+        return maxAge;
+    }
+
+    private String cacheKey( HttpServletRequest req, String encoding ) {
+        String query = req.getQueryString();
+        return encoding + " " + req.getRequestURI() + ( query == null ? "" : "?" + query );
+    }
+
+    private static class CachedBody {
+        private final byte[] body;
+        private final String contentType;
+        private final String cacheControl;
+        private final long expiresAt;
+
+        CachedBody( byte[] body, String contentType, String cacheControl, long expiresAt ) {
+            this.body = body;
+            this.contentType = contentType;
+            this.cacheControl = cacheControl;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
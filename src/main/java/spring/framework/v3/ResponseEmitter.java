@@ -0,0 +1,339 @@
+package spring.framework.v3;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 流式响应
+ * Controller返回ResponseEmitter后，容器线程立即释放，业务线程通过send逐条推送数据，
+ * DispatcherCore在异步模式下通过WriteListener非阻塞地写出。待发送的数据放在有界队列中，
+ * 客户端读得慢时send会阻塞，内存占用不随响应总大小增长。
+ * 没有servlet异步支持但传输层提供了StreamingTransport时（独立运行），同样由WriteListener驱动，
+ * 推送期间不占用任何线程。
+ * <p>
+ * 注意：Controller返回之前send的数据超过队列容量时会阻塞在容器线程上，应当在返回之后再开始推送。
+ */
+public class ResponseEmitter {
+    private static final int DEFAULT_CAPACITY = 16;
+
+    /**
+     * 没有servlet容器时由传输层实现，作用相当于AsyncContext：Controller返回后调用线程不再等待，
+     * 输出流的WriteListener负责把数据推给客户端。通过请求属性ATTRIBUTE交给DispatcherCore。
+     */
+    interface StreamingTransport {
+        String ATTRIBUTE = StreamingTransport.class.getName();
+
+        /**
+         * 接管响应
+         *
+         * @param timeout 毫秒，0表示不超时
+         * @param onClose 超时或者客户端断开时调用
+         */
+        void start( long timeout, Runnable onClose );
+
+        /**
+         * 数据已经全部交给输出流，结束响应
+         */
+        void complete();
+    }
+
+    private final BlockingQueue< byte[] > queue;
+    private final List< Runnable > completionCallbacks = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean callbacksInvoked = new AtomicBoolean();
+
+    // 业务方已经调用complete，队列排空后结束响应
+    private volatile boolean completed;
+    // 客户端断开、超时或写出失败，之后的send都会失败
+    private volatile boolean closed;
+
+    // 异步模式下的输出，由DispatcherCore在Controller返回后设置
+    private ServletOutputStream out;
+    private AsyncContext asyncContext;
+    private StreamingTransport transport;
+    // 上一次write之后还没有flush
+    private boolean pendingFlush;
+    private boolean finished;
+
+    public ResponseEmitter() {
+        this( DEFAULT_CAPACITY );
+    }
+
+    /**
+     * @param capacity 最多缓存多少条待发送的数据
+     */
+    public ResponseEmitter( int capacity ) {
+        this.queue = new ArrayBlockingQueue<>( capacity );
+    }
+
+    /**
+     * 推送一条数据，队列已满时阻塞直到客户端读走一部分
+     *
+     * @throws IOException 客户端已经断开或者响应已经结束
+     */
+    public void send( Object item ) throws IOException {
+        enqueue( encode( item ) );
+    }
+
+    /**
+     * 不阻塞地推送一条数据
+     *
+     * @return 队列已满时返回false
+     */
+    public boolean trySend( Object item ) throws IOException {
+        checkOpen();
+        if ( !queue.offer( encode( item ) ) ) {
+            return false;
+        }
+        drain();
+        return true;
+    }
+
+    /**
+     * 数据已经全部推送，发送完队列中剩余的数据后结束响应
+     */
+    public void complete() {
+        completed = true;
+        drain();
+    }
+
+    /**
+     * 客户端断开或者响应结束后回调，业务方可以借此停止生产数据
+     */
+    public void onCompletion( Runnable callback ) {
+        completionCallbacks.add( callback );
+    }
+
+    /**
+     * 响应的Content-Type，为null时使用Controller自己设置的值
+     */
+    protected String getContentType() {
+        return null;
+    }
+
+    /**
+     * 把一条数据编码为要写出的字节
+     */
+    protected byte[] encode( Object item ) {
+        if ( item instanceof byte[] ) {
+            return ( byte[] ) item;
+        }
+        return String.valueOf( item ).getBytes( StandardCharsets.UTF_8 );
+    }
+
+    protected final void enqueue( byte[] bytes ) throws IOException {
+        try {
+            // 定时醒来检查客户端是否已经断开，避免生产者永远阻塞
+            while ( !queue.offer( bytes, 1, TimeUnit.SECONDS ) ) {
+                checkOpen();
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while waiting for the client to read" );
+        }
+        checkOpen();
+        drain();
+    }
+
+    private void checkOpen() throws IOException {
+        if ( closed ) {
+            throw new IOException( "The response stream has been closed" );
+        }
+        if ( completed ) {
+            throw new IOException( "The emitter has already been completed" );
+        }
+    }
+
+    /**
+     * 异步模式：启动AsyncContext并注册WriteListener，之后由容器回调或send触发写出
+     */
+    void startAsync( HttpServletRequest req, HttpServletResponse resp, long timeout ) throws IOException {
+        applyHeaders( resp );
+        AsyncContext context = req.startAsync( req, resp );
+        context.setTimeout( timeout );
+        context.addListener( new AsyncListener() {
+            @Override
+            public void onComplete( AsyncEvent event ) {
+                close();
+            }
+
+            @Override
+            public void onTimeout( AsyncEvent event ) {
+                close();
+                event.getAsyncContext().complete();
+            }
+
+            @Override
+            public void onError( AsyncEvent event ) {
+                close();
+            }
+
+            @Override
+            public void onStartAsync( AsyncEvent event ) {
+            }
+        } );
+        ServletOutputStream outputStream = resp.getOutputStream();
+        synchronized ( this ) {
+            this.asyncContext = context;
+            this.out = outputStream;
+        }
+        listen( outputStream );
+    }
+
+    /**
+     * 由传输层接管的异步模式，和startAsync一样通过WriteListener写出
+     */
+    void startDetached( HttpServletResponse resp, StreamingTransport transport, long timeout ) throws IOException {
+        applyHeaders( resp );
+        ServletOutputStream outputStream = resp.getOutputStream();
+        synchronized ( this ) {
+            this.transport = transport;
+            this.out = outputStream;
+        }
+        transport.start( timeout, () -> {
+            close();
+            finish();
+        } );
+        listen( outputStream );
+    }
+
+    private void listen( ServletOutputStream outputStream ) {
+        outputStream.setWriteListener( new WriteListener() {
+            @Override
+            public void onWritePossible() {
+                drain();
+            }
+
+            @Override
+            public void onError( Throwable t ) {
+                close();
+                finish();
+            }
+        } );
+    }
+
+    /**
+     * 阻塞模式：既没有异步支持也没有StreamingTransport时（预热请求）在当前线程上逐条写出，直到complete
+     */
+    void writeBlocking( HttpServletResponse resp ) throws IOException {
+        applyHeaders( resp );
+        OutputStream outputStream = resp.getOutputStream();
+        try {
+            while ( !closed ) {
+                byte[] bytes = queue.poll( 1, TimeUnit.SECONDS );
+                if ( bytes == null ) {
+                    if ( completed && queue.isEmpty() ) {
+                        break;
+                    }
+                    continue;
+                }
+                outputStream.write( bytes );
+                outputStream.flush();
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while streaming the response" );
+        } catch ( IOException e ) {
+            close();
+            throw e;
+        } finally {
+            closed = true;
+            invokeCallbacks();
+        }
+    }
+
+    /**
+     * HEAD请求只需要响应头，不推送数据，直接关闭，生产者的下一次send会失败
+     */
+    void discard( HttpServletResponse resp ) {
+        applyHeaders( resp );
+        close();
+    }
+
+    private void applyHeaders( HttpServletResponse resp ) {
+        if ( getContentType() != null ) {
+            resp.setContentType( getContentType() );
+        }
+        // 中间代理不要缓存、不要攒批
+        resp.setHeader( "Cache-Control", "no-cache" );
+        resp.setHeader( "X-Accel-Buffering", "no" );
+    }
+
+    /**
+     * 在输出可写期间尽量多地写出，不可写时直接返回，等待容器回调onWritePossible
+     */
+    private synchronized void drain() {
+        if ( out == null || finished ) {
+            return;
+        }
+        try {
+            while ( !closed && out.isReady() ) {
+                if ( pendingFlush ) {
+                    pendingFlush = false;
+                    out.flush();
+                    continue;
+                }
+                byte[] bytes = queue.poll();
+                if ( bytes == null ) {
+                    if ( completed ) {
+                        finish();
+                    }
+                    return;
+                }
+                out.write( bytes );
+                pendingFlush = true;
+            }
+        } catch ( IOException | IllegalStateException e ) {
+            close();
+            finish();
+        }
+        if ( closed ) {
+            finish();
+        }
+    }
+
+    private synchronized void finish() {
+        if ( finished || asyncContext == null && transport == null ) {
+            return;
+        }
+        finished = true;
+        if ( transport != null ) {
+            transport.complete();
+        } else {
+            try {
+                asyncContext.complete();
+            } catch ( IllegalStateException e ) {
+                // 超时或出错时容器可能已经结束了异步请求
+            }
+        }
+        invokeCallbacks();
+    }
+
+    private void close() {
+        closed = true;
+        queue.clear();
+        invokeCallbacks();
+    }
+
+    private void invokeCallbacks() {
+        if ( callbacksInvoked.compareAndSet( false, true ) ) {
+            for ( Runnable callback : completionCallbacks ) {
+                callback.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package spring.framework.v3;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Server-Sent Events格式的流式响应，每条数据编码为一个data事件
+ */
+public class SseEmitter extends ResponseEmitter {
+
+    public SseEmitter() {
+        super();
+    }
+
+    public SseEmitter( int capacity ) {
+        super( capacity );
+    }
+
+    /**
+     * 推送一个带事件名的事件，客户端通过addEventListener(name)接收
+     */
+    public void send( String eventName, Object data ) throws IOException {
+        enqueue( format( eventName, String.valueOf( data ) ) );
+    }
+
+    @Override
+    protected String getContentType() {
+        return "text/event-stream;charset=UTF-8";
+    }
+
+    @Override
+    protected byte[] encode( Object item ) {
+        return format( null, String.valueOf( item ) );
+    }
+
+    private byte[] format( String eventName, String data ) {
+        StringBuilder sb = new StringBuilder( data.length() + 16 );
+        if ( eventName != null ) {
+            sb.append( "event: " ).append( eventName ).append( '\n' );
+        }
+        // 多行数据每行都要带data:前缀
+        for ( String line : data.split( "\r\n|\r|\n", -1 ) ) {
+            sb.append( "data: " ).append( line ).append( '\n' );
+        }
+        return sb.append( '\n' ).toString().getBytes( StandardCharsets.UTF_8 );
+    }
+}
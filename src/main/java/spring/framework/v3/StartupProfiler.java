@@ -0,0 +1,167 @@
+package spring.framework.v3;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 启动过程分析
+ * 记录init中每个阶段以及每个Bean的墙钟时间、CPU时间、分配的字节数和处理的数量，
+ * 可以输出为JSON报告或者文本时间线。
+ */
+class StartupProfiler {
+    private static final int TIMELINE_WIDTH = 60;
+
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    private final boolean cpuTimeSupported;
+    private final boolean allocationSupported;
+    private final long originNanos = System.nanoTime();
+
+    private final List< Step > phases = new ArrayList<>();
+    private Step currentPhase;
+
+    StartupProfiler() {
+        cpuTimeSupported = threadMXBean.isCurrentThreadCpuTimeSupported() && threadMXBean.isThreadCpuTimeEnabled();
+        allocationSupported = threadMXBean instanceof com.sun.management.ThreadMXBean
+                && ( ( com.sun.management.ThreadMXBean ) threadMXBean ).isThreadAllocatedMemorySupported()
+                && ( ( com.sun.management.ThreadMXBean ) threadMXBean ).isThreadAllocatedMemoryEnabled();
+    }
+
+    /**
+     * 开始一个阶段，调用方负责在同一个线程上调用end
+     */
+    synchronized Step beginPhase( String name ) {
+        Step step = new Step( name );
+        phases.add( step );
+        currentPhase = step;
+        return step;
+    }
+
+    /**
+     * 在当前阶段下开始记录一个Bean
+     */
+    synchronized Step beginBean( String name ) {
+        Step step = new Step( name );
+        if ( currentPhase != null ) {
+            currentPhase.children.add( step );
+        }
+        return step;
+    }
+
+    synchronized String toJson( boolean ready ) {
+        StringBuilder sb = new StringBuilder();
+        sb.append( "{\"ready\":" ).append( ready )
+                .append( ",\"cpuTimeSupported\":" ).append( cpuTimeSupported )
+                .append( ",\"allocationSupported\":" ).append( allocationSupported )
+                .append( ",\"phases\":[" );
+        for ( int i = 0; i < phases.size(); i++ ) {
+            if ( i > 0 ) {
+                sb.append( ',' );
+            }
+            appendJson( sb, phases.get( i ), true );
+        }
+        return sb.append( "]}" ).toString();
+    }
+
+    /**
+     * 文本时间线，每个阶段一行，横条表示开始时间和持续时间
+     */
+    synchronized String toTimeline() {
+        long total = 1;
+        for ( Step phase : phases ) {
+            total = Math.max( total, phase.startNanos - originNanos + phase.wallNanos );
+        }
+        StringBuilder sb = new StringBuilder();
+        for ( Step phase : phases ) {
+            appendTimeline( sb, phase, total, "" );
+            for ( Step bean : phase.children ) {
+                appendTimeline( sb, bean, total, "  " );
+            }
+        }
+        sb.append( String.format( "total %.3f ms%n", total / 1e6 ) );
+        return sb.toString();
+    }
+
+    private void appendTimeline( StringBuilder sb, Step step, long total, String indent ) {
+        long offset = step.startNanos - originNanos;
+        int from = ( int ) ( offset * TIMELINE_WIDTH / total );
+        int length = Math.max( 1, ( int ) ( step.wallNanos * TIMELINE_WIDTH / total ) );
+        StringBuilder bar = new StringBuilder();
+        for ( int i = 0; i < TIMELINE_WIDTH; i++ ) {
+            bar.append( i >= from && i < from + length ? '#' : '.' );
+        }
+        sb.append( String.format( "%-40s %s %9.3f ms @ %9.3f ms%n", indent + step.name, bar, step.wallNanos / 1e6, offset / 1e6 ) );
+    }
+
+    private void appendJson( StringBuilder sb, Step step, boolean withChildren ) {
+        sb.append( "{\"name\":" ).append( Json.quote( step.name ) )
+                .append( ",\"startMs\":" ).append( toMillis( step.startNanos - originNanos ) )
+                .append( ",\"wallMs\":" ).append( toMillis( step.wallNanos ) )
+                .append( ",\"cpuMs\":" ).append( toMillis( step.cpuNanos ) )
+                .append( ",\"allocatedBytes\":" ).append( step.allocatedBytes )
+                .append( ",\"items\":" ).append( step.items );
+        if ( withChildren ) {
+            sb.append( ",\"beans\":[" );
+            for ( int i = 0; i < step.children.size(); i++ ) {
+                if ( i > 0 ) {
+                    sb.append( ',' );
+                }
+                appendJson( sb, step.children.get( i ), false );
+            }
+            sb.append( ']' );
+        }
+        sb.append( '}' );
+    }
+
+    private static double toMillis( long nanos ) {
+        return nanos / ( double ) TimeUnit.MILLISECONDS.toNanos( 1 );
+    }
+
+    private long currentCpuNanos() {
+        return cpuTimeSupported ? threadMXBean.getCurrentThreadCpuTime() : 0;
+    }
+
+    private long currentAllocatedBytes() {
+        if ( !allocationSupported ) {
+            return 0;
+        }
+        return ( ( com.sun.management.ThreadMXBean ) threadMXBean ).getThreadAllocatedBytes( Thread.currentThread().getId() );
+    }
+
+    /**
+     * 一个阶段或者一个Bean的记录
+     */
+    class Step {
+        private final String name;
+        private final long startNanos;
+        private final long startCpuNanos;
+        private final long startAllocatedBytes;
+        private final List< Step > children = new ArrayList<>();
+        private long wallNanos;
+        private long cpuNanos;
+        private long allocatedBytes;
+        private int items;
+
+        private Step( String name ) {
+            this.name = name;
+            this.startAllocatedBytes = currentAllocatedBytes();
+            this.startCpuNanos = currentCpuNanos();
+            this.startNanos = System.nanoTime();
+        }
+
+        /**
+         * @param items 本阶段处理的数量，例如扫描到的类、创建的Bean、映射的路由
+         */
+        void end( int items ) {
+            long endNanos = System.nanoTime();
+            synchronized ( StartupProfiler.this ) {
+                this.wallNanos = endNanos - startNanos;
+                this.cpuNanos = currentCpuNanos() - startCpuNanos;
+                this.allocatedBytes = currentAllocatedBytes() - startAllocatedBytes;
+                this.items = items;
+            }
+        }
+    }
+}
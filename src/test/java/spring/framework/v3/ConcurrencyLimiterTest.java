@@ -0,0 +1,105 @@
+package spring.framework.v3;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 在模拟时钟上按轮次驱动限制器：每轮同时发出concurrency个请求，经过latency后一起返回
+ */
+public class ConcurrencyLimiterTest {
+    private long now = TimeUnit.SECONDS.toNanos( 1 );
+
+    private ConcurrencyLimiter newLimiter( int initialLimit ) {
+        return new ConcurrencyLimiter( initialLimit, 1, 50, 0.9, 2.0, 100, () -> now );
+    }
+
+    @Test
+    public void healthyTrafficGrowsTheLimit() {
+        ConcurrencyLimiter limiter = newLimiter( 10 );
+        int rejected = 0;
+        for ( int i = 0; i < 500; i++ ) {
+            rejected += round( limiter, 60, micros( 500 ) );
+        }
+        assertEquals( 50, limiter.getLimit() );
+        assertTrue( "rejected " + rejected, rejected > 0 );
+    }
+
+    @Test
+    public void overloadCutsOncePerWindow() {
+        ConcurrencyLimiter limiter = newLimiter( 20 );
+        for ( int i = 0; i < 20; i++ ) {
+            round( limiter, 10, millis( 2 ) );
+        }
+        int before = limiter.getLimit();
+        // 同一轮里的慢请求都在同一次缩小之前开始，只能缩小一次
+        round( limiter, before, millis( 50 ) );
+        assertEquals( ( int ) ( before * 0.9 ), limiter.getLimit() );
+        round( limiter, limiter.getLimit(), millis( 50 ) );
+        assertEquals( ( int ) ( ( int ) ( before * 0.9 ) * 0.9 ), limiter.getLimit() );
+        assertEquals( 0, limiter.getInFlight() );
+    }
+
+    @Test
+    public void latencyShiftIsLearnedAndLimitRecovers() {
+        ConcurrencyLimiter limiter = newLimiter( 20 );
+        // 少量极快的样本之后，稳定在较慢但健康的延迟上
+        for ( int i = 0; i < 5; i++ ) {
+            round( limiter, 1, micros( 200 ) );
+        }
+        // 学习期：最多两个基线窗口内新延迟会被当作过载
+        int rejected = 0;
+        for ( int i = 0; i < 1000; i++ ) {
+            rejected += round( limiter, 4, millis( 3 ) );
+        }
+        assertEquals( millis( 3 ), limiter.getBaselineNanos() );
+        assertTrue( "rejected " + rejected + " of 4000", rejected < 800 );
+        // 学到新基线之后不再拒绝
+        rejected = 0;
+        for ( int i = 0; i < 1000; i++ ) {
+            rejected += round( limiter, 4, millis( 3 ) );
+        }
+        assertEquals( 0, rejected );
+        assertTrue( "limit " + limiter.getLimit(), limiter.getLimit() >= 4 );
+    }
+
+    @Test
+    public void cancelReleasesWithoutASample() {
+        ConcurrencyLimiter limiter = newLimiter( 1 );
+        assertTrue( limiter.tryAcquire() );
+        assertTrue( !limiter.tryAcquire() );
+        limiter.cancel();
+        assertEquals( 0, limiter.getInFlight() );
+        assertEquals( Long.MAX_VALUE, limiter.getBaselineNanos() );
+    }
+
+    /**
+     * @return 本轮被拒绝的请求数
+     */
+    private int round( ConcurrencyLimiter limiter, int concurrency, long latencyNanos ) {
+        int accepted = 0;
+        for ( int i = 0; i < concurrency; i++ ) {
+            if ( limiter.tryAcquire() ) {
+                accepted++;
+            }
+        }
+        now += latencyNanos;
+        for ( int i = 0; i < accepted; i++ ) {
+            limiter.release( latencyNanos );
+        }
+        // 两轮之间留出间隔，下一轮的请求在上一轮的缩小之后开始
+        now += 1;
+        return concurrency - accepted;
+    }
+
+    private static long millis( long value ) {
+        return TimeUnit.MILLISECONDS.toNanos( value );
+    }
+
+    private static long micros( long value ) {
+        return TimeUnit.MICROSECONDS.toNanos( value );
+    }
+}
@@ -0,0 +1,133 @@
+package spring.framework.v3;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Properties;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * multipart解析：分隔符被拆到多次read中、超过阈值转存磁盘、普通字段超限、格式错误
+ */
+public class MultipartParserTest {
+    private static final String BOUNDARY = "----boundary7MA4YWxk";
+
+    @Test
+    public void delimiterSplitAcrossReadsIsFound() throws IOException {
+        byte[] content = new byte[ 3000 ];
+        for ( int i = 0; i < content.length; i++ ) {
+            // 内容里夹杂分隔符的前缀，不能被误判为分隔符
+            content[ i ] = ( byte ) ( i % 100 == 0 ? '\r' : i % 100 == 1 ? '\n' : i % 100 == 2 ? '-' : 'a' + i % 26 );
+        }
+        byte[] body = body( content );
+        // 每次只读到1、2、3…个字节，分隔符的每一种拆分位置都会出现
+        for ( int chunk = 1; chunk <= BOUNDARY.length() + 4; chunk++ ) {
+            MultipartParser.MultipartRequest request = parse( new Properties(), body, chunk );
+            try {
+                assertArrayEquals( "chunk " + chunk, new String[] { "bob" }, request.getFields().get( "name" ) );
+                MultipartFile file = request.getFile( "file" );
+                assertEquals( "a.bin", file.getOriginalFilename() );
+                assertTrue( file.isInMemory() );
+                assertArrayEquals( "chunk " + chunk, content, file.getBytes() );
+            } finally {
+                request.release();
+            }
+        }
+    }
+
+    @Test
+    public void partOverThresholdSpillsToDisk() throws IOException {
+        Properties config = new Properties();
+        config.setProperty( "multipart.memoryThreshold", "1024" );
+        byte[] content = new byte[ 10000 ];
+        Arrays.fill( content, ( byte ) 'z' );
+        MultipartParser.MultipartRequest request = parse( config, body( content ), 4096 );
+        try {
+            MultipartFile file = request.getFile( "file" );
+            assertFalse( file.isInMemory() );
+            assertEquals( content.length, file.getSize() );
+            assertArrayEquals( content, file.getBytes() );
+        } finally {
+            request.release();
+        }
+    }
+
+    @Test
+    public void oversizedFieldIsRejected() throws IOException {
+        // 文件part不受maxFieldSize限制，普通字段"bob"超过了
+        Properties config = new Properties();
+        config.setProperty( "multipart.maxFieldSize", "2" );
+        try {
+            parse( config, body( new byte[ 100 ] ), 4096 );
+            fail( "oversized field was accepted" );
+        } catch ( MultipartSizeException expected ) {
+            // 返回413
+        }
+        config.setProperty( "multipart.maxFieldSize", "3" );
+        parse( config, body( new byte[ 100 ] ), 4096 ).release();
+    }
+
+    @Test
+    public void truncatedBodyIsAParseError() throws IOException {
+        byte[] body = body( "abc".getBytes( StandardCharsets.ISO_8859_1 ) );
+        try {
+            parse( new Properties(), Arrays.copyOf( body, body.length - 20 ), 4096 );
+            fail( "truncated body was accepted" );
+        } catch ( MultipartParseException expected ) {
+            // 返回400
+        }
+    }
+
+    private static MultipartParser.MultipartRequest parse( Properties config, byte[] body, int chunk ) throws IOException {
+        LocalExchange exchange = new LocalExchange( "POST", "", "/upload", new ByteArrayOutputStream() );
+        exchange.addRequestHeader( "Content-Type", "multipart/form-data; boundary=" + BOUNDARY );
+        exchange.setBody( new TricklingInputStream( body, chunk ) );
+        return new MultipartParser( config ).parse( exchange.getRequest() );
+    }
+
+    private static byte[] body( byte[] content ) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write( ( "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"name\"\r\n\r\n"
+                + "bob\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"a.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n" ).getBytes( StandardCharsets.ISO_8859_1 ) );
+        out.write( content );
+        out.write( ( "\r\n--" + BOUNDARY + "--\r\n" ).getBytes( StandardCharsets.ISO_8859_1 ) );
+        return out.toByteArray();
+    }
+
+    /**
+     * 每次read最多返回chunk个字节，模拟网络上零散到达的数据
+     */
+    private static class TricklingInputStream extends InputStream {
+        private final ByteArrayInputStream in;
+        private final int chunk;
+
+        TricklingInputStream( byte[] data, int chunk ) {
+            this.in = new ByteArrayInputStream( data );
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read() {
+            return in.read();
+        }
+
+        @Override
+        public int read( byte[] b, int off, int len ) {
+            return in.read( b, off, Math.min( len, chunk ) );
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package spring.framework.v3;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 通过真实的socket验证NioHttpServer的请求解析，服务端口由系统分配
+ */
+public class NioHttpServerTest {
+    private static DispatcherCore dispatcherCore;
+    private static NioHttpServer server;
+    private static int port;
+
+    @BeforeClass
+    public static void startServer() throws IOException {
+        dispatcherCore = new DispatcherCore();
+        dispatcherCore.init( "application.properties", null );
+        dispatcherCore.getConfig().setProperty( "server.port", "0" );
+        dispatcherCore.getConfig().setProperty( "server.maxHeaderSize", "4096" );
+        dispatcherCore.getConfig().setProperty( "server.maxBodyMemory", "65536" );
+        // 只有一个工作线程，流式响应如果占住它，其它请求就无法处理
+        dispatcherCore.getConfig().setProperty( "server.workers", "1" );
+        server = new NioHttpServer( dispatcherCore );
+        server.start();
+        port = server.getLocalPort();
+        Thread thread = new Thread( () -> {
+            try {
+                server.run();
+            } catch ( IOException e ) {
+                e.printStackTrace();
+            }
+        }, "nio-http-server-test" );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop();
+        dispatcherCore.destroy();
+    }
+
+    @Test
+    public void pipelinedRequestsAreAnsweredInOrder() throws IOException {
+        // 两个请求在同一次write中发出，第二个请求完整地躺在第一个请求之后的读缓冲区里
+        String response = exchange( "GET /spring/demo/query?name=first HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                + "GET /spring/demo/query?name=second HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n" );
+        int first = response.indexOf( "My name is first" );
+        int second = response.indexOf( "My name is second" );
+        assertTrue( response, first > 0 );
+        assertTrue( response, second > first );
+        assertEquals( response, 2, count( response, "HTTP/1.1 200" ) );
+    }
+
+    @Test
+    public void requestSplitAcrossWritesIsReassembled() throws IOException {
+        try ( Socket socket = new Socket( "localhost", port ) ) {
+            socket.setTcpNoDelay( true );
+            OutputStream out = socket.getOutputStream();
+            byte[] request = ( "GET /spring/demo/query?name=split HTTP/1.1\r\nHost: localhost\r\n"
+                    + "Connection: close\r\n\r\n" ).getBytes( StandardCharsets.ISO_8859_1 );
+            for ( byte b : request ) {
+                out.write( b );
+                out.flush();
+            }
+            String response = readAll( socket.getInputStream() );
+            assertTrue( response, response.startsWith( "HTTP/1.1 200" ) );
+            assertTrue( response, response.endsWith( "My name is split" ) );
+        }
+    }
+
+    @Test
+    public void openStreamDoesNotHoldTheWorker() throws IOException {
+        try ( Socket stream = new Socket( "localhost", port ) ) {
+            stream.setSoTimeout( 10000 );
+            stream.getOutputStream().write( ( "GET /spring/demo/events?name=s HTTP/1.1\r\nHost: localhost\r\n\r\n" )
+                    .getBytes( StandardCharsets.ISO_8859_1 ) );
+            InputStream in = stream.getInputStream();
+            StringBuilder received = new StringBuilder();
+            while ( received.indexOf( "data: " ) < 0 ) {
+                int b = in.read();
+                assertTrue( "stream ended early: " + received, b >= 0 );
+                received.append( ( char ) b );
+            }
+            assertTrue( received.toString(), received.indexOf( "Transfer-Encoding: chunked" ) > 0 );
+            // 流还在推送，另一个请求照样由唯一的工作线程处理
+            String response = exchange( "GET /spring/demo/query?name=meanwhile HTTP/1.1\r\nHost: localhost\r\n"
+                    + "Connection: close\r\n\r\n" );
+            assertTrue( response, response.endsWith( "My name is meanwhile" ) );
+        }
+    }
+
+    @Test
+    public void malformedQueryIsRejectedAndConnectionStaysUsable() throws IOException {
+        // 非法的%转义不能让工作线程死掉，连接在400之后还要能处理下一个请求
+        String response = exchange( "GET /spring/demo/query?name=%zz HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                + "GET /spring/demo/query?name=after HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n" );
+        assertTrue( response, response.startsWith( "HTTP/1.1 400" ) );
+        assertTrue( response, response.endsWith( "My name is after" ) );
+    }
+
+    @Test
+    public void builtinEndpointsCheckTheMethod() throws IOException {
+        String response = exchange( "DELETE /ready HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n" );
+        assertTrue( response, response.startsWith( "HTTP/1.1 405" ) );
+        assertTrue( response, response.contains( "Allow: GET, OPTIONS\r\n" ) );
+
+        response = exchange( "OPTIONS /batch HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n" );
+        assertTrue( response, response.startsWith( "HTTP/1.1 200" ) );
+        assertTrue( response, response.contains( "Allow: GET, POST, OPTIONS\r\n" ) );
+
+        // HEAD不能去执行子请求
+        response = exchange( "HEAD /batch?a=/spring/demo/query HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n" );
+        assertTrue( response, response.startsWith( "HTTP/1.1 405" ) );
+    }
+
+    @Test
+    public void bodyMemoryIsLimitedAndReturned() throws IOException {
+        StringBuilder body = new StringBuilder( "name=posted&pad=" );
+        while ( body.length() < 40000 ) {
+            body.append( 'x' );
+        }
+        // 两个请求体加起来超过server.maxBodyMemory，前一个处理完归还额度后后一个才能通过
+        for ( int i = 0; i < 2; i++ ) {
+            String response = exchange( "POST /spring/demo/query HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n"
+                    + "Content-Type: application/x-www-form-urlencoded\r\nContent-Length: " + body.length() + "\r\n\r\n" + body );
+            assertTrue( response, response.endsWith( "My name is posted" ) );
+        }
+        String response = exchange( "POST /spring/demo/query HTTP/1.1\r\nHost: localhost\r\n"
+                + "Content-Type: application/x-www-form-urlencoded\r\nContent-Length: 100000\r\n\r\n" );
+        assertTrue( response, response.startsWith( "HTTP/1.1 503" ) );
+    }
+
+    @Test
+    public void oversizedHeaderIsRejectedWith431() throws IOException {
+        StringBuilder value = new StringBuilder();
+        for ( int i = 0; i < 8192; i++ ) {
+            value.append( 'x' );
+        }
+        String response = exchange( "GET /spring/demo/query?name=a HTTP/1.1\r\nHost: localhost\r\nX-Large: "
+                + value + "\r\n\r\n" );
+        assertTrue( response, response.startsWith( "HTTP/1.1 431" ) );
+    }
+
+    private static String exchange( String request ) throws IOException {
+        try ( Socket socket = new Socket( "localhost", port ) ) {
+            socket.setSoTimeout( 10000 );
+            socket.getOutputStream().write( request.getBytes( StandardCharsets.ISO_8859_1 ) );
+            socket.getOutputStream().flush();
+            return readAll( socket.getInputStream() );
+        }
+    }
+
+    private static String readAll( InputStream in ) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[ 8192 ];
+        int count;
+        while ( ( count = in.read( buffer ) ) > 0 ) {
+            out.write( buffer, 0, count );
+        }
+        return new String( out.toByteArray(), StandardCharsets.UTF_8 );
+    }
+
+    private static int count( String text, String target ) {
+        int count = 0;
+        for ( int i = text.indexOf( target ); i >= 0; i = text.indexOf( target, i + 1 ) ) {
+            count++;
+        }
+        return count;
+    }
+}